@@ -0,0 +1,104 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonWriter;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.ConfigurationInitializer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Base of the handlers for batches of records. The measurements of all records of a batch get
+ * merged and written together. Records which failed are reported as {@code batchItemFailures},
+ * so only they get redelivered. If the batch can't be processed at all, the failure is thrown
+ * and the whole batch gets redelivered.
+ *
+ * @author Udo Held
+ */
+public abstract class BatchHandler implements RequestStreamHandler {
+
+  @Override
+  public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context)
+      throws IOException {
+    List<String> failedIds;
+    InvocationMetrics metrics = InvocationMetrics.DISABLED;
+    InvocationProfiler profiler = InvocationProfiler.DISABLED;
+    try {
+      Config config = ConfigurationInitializer.initializeConfig(context, false);
+      String connectionUri = ConfigurationInitializer.buildConnectionUri(config);
+      metrics = InvocationMetrics.forInvocation(config, context);
+      profiler = InvocationProfiler.forInvocation(config, context.getLogger());
+
+      Reader reader = new InputStreamReader(new BufferedInputStream(inputStream),
+          StandardCharsets.UTF_8);
+      failedIds = ProcessDataHandler.process(connectionUri, config, context.getLogger(),
+          metrics, pdh -> processBatch(pdh, reader));
+    } catch (IOException | RuntimeException e) {
+      context.getLogger().log("Unable to process the batch. " + e.getMessage());
+      throw e;
+    } finally {
+      profiler.stop(context.getLogger());
+      metrics.log(context.getLogger());
+    }
+
+    if (!failedIds.isEmpty()) {
+      context.getLogger().log("Reporting " + failedIds.size() + " failed record(s).");
+    }
+    writeResponse(outputStream, failedIds);
+  }
+
+  /**
+   * Processes all records of the batch.
+   * @param pdh Handler used for processing.
+   * @param input Batch event.
+   * @return Ids of the failed records.
+   * @throws IOException if the event can't be read.
+   */
+  protected abstract List<String> processBatch(ProcessDataHandler pdh, Reader input)
+      throws IOException;
+
+  private void writeResponse(OutputStream outputStream, List<String> failedIds)
+      throws IOException {
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream,
+        StandardCharsets.UTF_8));
+    writer.beginObject();
+    writer.name("batchItemFailures");
+    writer.beginArray();
+    for (String id : failedIds) {
+      writer.beginObject();
+      writer.name("itemIdentifier").value(id);
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+}
@@ -0,0 +1,374 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.StreamingInputParser.MeasurementConsumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses SenML in its CBOR representation (RFC 8428) record by record and passes every
+ * measurement on as soon as it has been read. The records use the integer labels of the
+ * standard, text labels as used by the JSON format are accepted as well. The base name and base
+ * time are carried on to the following records until they are replaced. The records may be
+ * wrapped in {@code d} like the JSON format.
+ *
+ * <p>Only the subset of CBOR used by SenML is supported. Tags are ignored.</p>
+ *
+ * @author Udo Held
+ */
+public class CborInputParser {
+  private static final int LABEL_BASE_NAME = -2;
+  private static final int LABEL_BASE_TIME = -3;
+  private static final int LABEL_NAME = 0;
+  private static final int LABEL_VALUE = 2;
+  private static final int LABEL_TIME = 6;
+  private static final String FIELD_DATA = "d";
+
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_BYTES = 2;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int INDEFINITE = 31;
+  private static final int BREAK = 0xff;
+  // Strings can't be longer than the maximum payload of an invocation.
+  private static final int MAX_STRING_LENGTH = 6 * 1024 * 1024;
+  private static final int READ_CHUNK_LENGTH = 8192;
+  // SenML nests a few levels only, deeper input would just exhaust the stack.
+  private static final int MAX_DEPTH = 16;
+
+  /**
+   * Checks if the first byte starts a CBOR array, map or tag. JSON can't start with any of them.
+   * @param firstByte First byte of the input.
+   * @return true, if the input is CBOR.
+   */
+  public static boolean isCbor(int firstByte) {
+    int major = firstByte >> 5;
+    return firstByte != -1 && (major == MAJOR_ARRAY || major == MAJOR_MAP || major == MAJOR_TAG);
+  }
+
+  /**
+   * Parses the input and passes all measurements to the consumer.
+   * @param input CBOR encoded SenML pack. The stream isn't closed.
+   * @param consumer Receives the measurements.
+   * @return Number of records found.
+   * @throws IOException if the input can't be read or isn't valid CBOR.
+   */
+  public int parse(InputStream input, MeasurementConsumer consumer) throws IOException {
+    int initialByte = input.read();
+    if (initialByte == -1) {
+      return 0;
+    }
+    initialByte = skipTags(input, initialByte);
+    return parseItem(input, initialByte, consumer, new Base(), 0);
+  }
+
+  private int parseItem(InputStream input, int initialByte, MeasurementConsumer consumer,
+                        Base base, int depth) throws IOException {
+    checkDepth(depth);
+    int major = initialByte >> 5;
+    if (major == MAJOR_ARRAY) {
+      int records = 0;
+      long length = readLength(input, initialByte);
+      for (long i = 0; length < 0 || i < length; i++) {
+        int itemByte = readByte(input);
+        if (length < 0 && itemByte == BREAK) {
+          break;
+        }
+        records += parseItem(input, skipTags(input, itemByte), consumer, base, depth + 1);
+      }
+      return records;
+    }
+    if (major != MAJOR_MAP) {
+      readValue(input, initialByte, depth);
+      return 0;
+    }
+
+    Map<Object, Object> record = readMap(input, initialByte, depth);
+    Object data = record.get(FIELD_DATA);
+    if (data instanceof List) {
+      int records = 0;
+      for (Object item : (List<?>) data) {
+        if (item instanceof Map) {
+          parseRecord((Map<?, ?>) item, consumer, base);
+          records++;
+        }
+      }
+      return records;
+    }
+    parseRecord(record, consumer, base);
+    return 1;
+  }
+
+  private void parseRecord(Map<?, ?> record, MeasurementConsumer consumer, Base base) {
+    Object baseName = get(record, LABEL_BASE_NAME, "bn");
+    if (baseName instanceof String) {
+      base.name = (String) baseName;
+    }
+    Object baseTime = get(record, LABEL_BASE_TIME, "bt");
+    if (baseTime instanceof Number) {
+      base.time = ((Number) baseTime).doubleValue();
+    }
+
+    Object name = get(record, LABEL_NAME, "n");
+    Object time = get(record, LABEL_TIME, "t");
+    Object value = get(record, LABEL_VALUE, "v");
+    consumer.accept(base.name, name instanceof String ? (String) name : null,
+        base.time + (time instanceof Number ? ((Number) time).doubleValue() : 0.0),
+        value instanceof Number ? ((Number) value).doubleValue() : Double.NaN);
+  }
+
+  private Object get(Map<?, ?> record, long label, String field) {
+    Object value = record.get(label);
+    return value != null ? value : record.get(field);
+  }
+
+  private Map<Object, Object> readMap(InputStream input, int initialByte, int depth)
+      throws IOException {
+    Map<Object, Object> map = new HashMap<>();
+    long length = readLength(input, initialByte);
+    for (long i = 0; length < 0 || i < length; i++) {
+      int keyByte = readByte(input);
+      if (length < 0 && keyByte == BREAK) {
+        break;
+      }
+      Object key = readValue(input, keyByte, depth + 1);
+      map.put(key, readValue(input, readByte(input), depth + 1));
+    }
+    return map;
+  }
+
+  private Object readValue(InputStream input, int initialByte, int depth) throws IOException {
+    checkDepth(depth);
+    int major = initialByte >> 5;
+    int additional = initialByte & 0x1f;
+    switch (major) {
+      case MAJOR_UNSIGNED:
+        return readArgument(input, additional);
+      case MAJOR_NEGATIVE:
+        return -1 - readArgument(input, additional);
+      case MAJOR_BYTES:
+      case MAJOR_TEXT:
+        byte[] bytes = readString(input, initialByte);
+        return major == MAJOR_TEXT ? new String(bytes, StandardCharsets.UTF_8) : bytes;
+      case MAJOR_ARRAY:
+        List<Object> list = new ArrayList<>();
+        long length = readLength(input, initialByte);
+        for (long i = 0; length < 0 || i < length; i++) {
+          int itemByte = readByte(input);
+          if (length < 0 && itemByte == BREAK) {
+            break;
+          }
+          list.add(readValue(input, itemByte, depth + 1));
+        }
+        return list;
+      case MAJOR_MAP:
+        return readMap(input, initialByte, depth);
+      case MAJOR_TAG:
+        return readValue(input, skipTags(input, initialByte), depth);
+      default:
+        return readSimple(input, additional);
+    }
+  }
+
+  private Object readSimple(InputStream input, int additional) throws IOException {
+    switch (additional) {
+      case 20:
+        return Boolean.FALSE;
+      case 21:
+        return Boolean.TRUE;
+      case 22:
+      case 23:
+        return null;
+      case 25:
+        return halfToDouble((int) readUnsigned(input, 2));
+      case 26:
+        return (double) Float.intBitsToFloat((int) readUnsigned(input, 4));
+      case 27:
+        return Double.longBitsToDouble(readUnsigned(input, 8));
+      default:
+        if (additional < 24) {
+          return null;
+        }
+        if (additional == 24) {
+          readByte(input);
+          return null;
+        }
+        throw new IOException("Invalid CBOR simple value " + additional + ".");
+    }
+  }
+
+  private byte[] readString(InputStream input, int initialByte) throws IOException {
+    long length = readLength(input, initialByte);
+    if (length >= 0) {
+      return readBytes(input, length);
+    }
+    ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+    int chunkByte;
+    while ((chunkByte = readByte(input)) != BREAK) {
+      long chunkLength = readLength(input, chunkByte);
+      if (chunkByte >> 5 != initialByte >> 5 || chunkLength < 0) {
+        throw new IOException("Invalid chunk within an indefinite length CBOR string.");
+      }
+      readBytes(input, chunks.size() + chunkLength, chunks);
+    }
+    return chunks.toByteArray();
+  }
+
+  private byte[] readBytes(InputStream input, long length) throws IOException {
+    if (length > READ_CHUNK_LENGTH) {
+      return readBytes(input, length, new ByteArrayOutputStream(READ_CHUNK_LENGTH))
+          .toByteArray();
+    }
+    byte[] bytes = new byte[(int) length];
+    int read = 0;
+    while (read < bytes.length) {
+      int readBytes = input.read(bytes, read, bytes.length - read);
+      if (readBytes == -1) {
+        throw new EOFException("Unexpected end of CBOR input.");
+      }
+      read += readBytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Reads bytes until the target holds the given length. The declared length isn't trusted, so
+   * the bytes are read in chunks and truncated input doesn't allocate all of it.
+   */
+  private ByteArrayOutputStream readBytes(InputStream input, long length,
+                                          ByteArrayOutputStream target) throws IOException {
+    if (length > MAX_STRING_LENGTH) {
+      throw new IOException("CBOR string too long.");
+    }
+    byte[] buffer = new byte[READ_CHUNK_LENGTH];
+    while (target.size() < length) {
+      int readBytes = input.read(buffer, 0, (int) Math.min(length - target.size(),
+          buffer.length));
+      if (readBytes == -1) {
+        throw new EOFException("Unexpected end of CBOR input.");
+      }
+      target.write(buffer, 0, readBytes);
+    }
+    return target;
+  }
+
+  /**
+   * Reads the length of a string, array or map.
+   * @return Length or -1 for indefinite length items.
+   */
+  private long readLength(InputStream input, int initialByte) throws IOException {
+    int additional = initialByte & 0x1f;
+    if (additional == INDEFINITE) {
+      return -1;
+    }
+    long length = readArgument(input, additional);
+    if (length < 0) {
+      throw new IOException("Invalid CBOR length.");
+    }
+    return length;
+  }
+
+  private long readArgument(InputStream input, int additional) throws IOException {
+    if (additional < 24) {
+      return additional;
+    }
+    switch (additional) {
+      case 24:
+        return readUnsigned(input, 1);
+      case 25:
+        return readUnsigned(input, 2);
+      case 26:
+        return readUnsigned(input, 4);
+      case 27:
+        long argument = readUnsigned(input, 8);
+        if (argument < 0) {
+          throw new IOException("CBOR argument too large.");
+        }
+        return argument;
+      default:
+        throw new IOException("Invalid CBOR argument " + additional + ".");
+    }
+  }
+
+  private long readUnsigned(InputStream input, int bytes) throws IOException {
+    long value = 0;
+    for (int i = 0; i < bytes; i++) {
+      value = (value << 8) | readByte(input);
+    }
+    return value;
+  }
+
+  private int readByte(InputStream input) throws IOException {
+    int value = input.read();
+    if (value == -1) {
+      throw new EOFException("Unexpected end of CBOR input.");
+    }
+    return value;
+  }
+
+  private void checkDepth(int depth) throws IOException {
+    if (depth > MAX_DEPTH) {
+      throw new IOException("CBOR input nested too deeply.");
+    }
+  }
+
+  private int skipTags(InputStream input, int initialByte) throws IOException {
+    int itemByte = initialByte;
+    while (itemByte >> 5 == MAJOR_TAG) {
+      readArgument(input, itemByte & 0x1f);
+      itemByte = readByte(input);
+    }
+    return itemByte;
+  }
+
+  private static double halfToDouble(int half) {
+    int exponent = (half >> 10) & 0x1f;
+    int mantissa = half & 0x3ff;
+    double value;
+    if (exponent == 0) {
+      value = mantissa * Math.pow(2, -24);
+    } else if (exponent == 0x1f) {
+      value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    } else {
+      value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+    }
+    return (half & 0x8000) != 0 ? -value : value;
+  }
+
+  /**
+   * Base values carried on from record to record.
+   */
+  private static class Base {
+    private String name;
+    // Without any base time the records can't be dated and get rejected.
+    private double time = Double.NaN;
+  }
+}
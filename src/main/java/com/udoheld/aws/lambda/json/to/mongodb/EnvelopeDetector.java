@@ -0,0 +1,157 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Detects the envelope of the Lambda input by only looking at the structure of its first bytes.
+ * Lambda events hold their records in {@code Records}, the event source or the fields of the
+ * first record tell the envelope. Any other input is considered to be SenML.
+ *
+ * @author Udo Held
+ */
+public class EnvelopeDetector {
+  /**
+   * Number of bytes looked at for detecting the envelope.
+   */
+  public static final int DETECTION_LENGTH = 4096;
+
+  private static final String FIELD_RECORDS = "Records";
+
+  /**
+   * Envelopes of the Lambda input.
+   */
+  public enum Envelope {
+    /**
+     * Plain SenML without any envelope.
+     */
+    SENML,
+    /**
+     * SNS notification holding the SenML in the {@code Message} of its records.
+     */
+    SNS,
+    /**
+     * SQS event holding the SenML in the {@code body} of its records.
+     */
+    SQS,
+    /**
+     * Kinesis event holding the base64 encoded SenML in the {@code data} of its records.
+     */
+    KINESIS
+  }
+
+  /**
+   * Detects the envelope without consuming the input.
+   * @param input Input supporting mark and reset.
+   * @return Envelope of the input.
+   * @throws IOException if the input can't be read.
+   */
+  public static Envelope detect(InputStream input) throws IOException {
+    byte[] buf = new byte[DETECTION_LENGTH];
+    input.mark(buf.length);
+    int length = 0;
+    int readBytes;
+    while (length < buf.length
+        && (readBytes = input.read(buf, length, buf.length - length)) != -1) {
+      length += readBytes;
+    }
+    input.reset();
+    return detect(buf, length);
+  }
+
+  /**
+   * Detects the envelope from the beginning of the input.
+   * @param prefix First bytes of the input.
+   * @param length Number of valid bytes.
+   * @return Envelope of the input.
+   */
+  public static Envelope detect(byte[] prefix, int length) {
+    JsonReader reader = new JsonReader(new InputStreamReader(
+        new ByteArrayInputStream(prefix, 0, length), StandardCharsets.UTF_8));
+    try {
+      if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+        return Envelope.SENML;
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (FIELD_RECORDS.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+          reader.beginArray();
+          if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            return detectRecord(reader);
+          }
+          return Envelope.SENML;
+        }
+        reader.skipValue();
+      }
+    } catch (IOException | IllegalStateException truncatedOrInvalid) {
+      // The envelope wasn't found within the prefix.
+    }
+    return Envelope.SENML;
+  }
+
+  private static Envelope detectRecord(JsonReader reader) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      switch (name) {
+        case "Sns":
+          return Envelope.SNS;
+        case "kinesis":
+          return Envelope.KINESIS;
+        case "receiptHandle":
+          return Envelope.SQS;
+        case "EventSource":
+        case "eventSource":
+          if (reader.peek() == JsonToken.STRING) {
+            Envelope envelope = fromEventSource(reader.nextString());
+            if (envelope != null) {
+              return envelope;
+            }
+          } else {
+            reader.skipValue();
+          }
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    return Envelope.SENML;
+  }
+
+  private static Envelope fromEventSource(String eventSource) {
+    switch (eventSource) {
+      case "aws:sns":
+        return Envelope.SNS;
+      case "aws:sqs":
+        return Envelope.SQS;
+      case "aws:kinesis":
+        return Envelope.KINESIS;
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Extracts the payload of the records of SQS and Kinesis events. The events are read token by
+ * token, all fields except the payload and the id of the records are skipped.
+ *
+ * @author Udo Held
+ */
+public class EventRecordExtractor {
+  private static final String FIELD_RECORDS = "Records";
+  private static final String FIELD_SQS_ID = "messageId";
+  private static final String FIELD_SQS_PAYLOAD = "body";
+  private static final String FIELD_KINESIS = "kinesis";
+  private static final String FIELD_KINESIS_ID = "sequenceNumber";
+  private static final String FIELD_KINESIS_PAYLOAD = "data";
+
+  /**
+   * Receives the extracted records.
+   */
+  @FunctionalInterface
+  public interface RecordConsumer {
+    /**
+     * Accepts a single record.
+     * @param recordId Id of the record used for reporting failures. Null if missing.
+     * @param payload Payload of the record.
+     * @throws IOException if the payload can't be processed.
+     */
+    void accept(String recordId, String payload) throws IOException;
+  }
+
+  /**
+   * Extracts the message id and body of all records of a SQS event.
+   * @param input SQS event. The reader isn't closed.
+   * @param consumer Receives the records in their order.
+   * @return Number of records found.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   */
+  public static int extractSqsRecords(Reader input, RecordConsumer consumer) throws IOException {
+    return extractRecords(input, consumer, null, FIELD_SQS_ID, FIELD_SQS_PAYLOAD);
+  }
+
+  /**
+   * Extracts the sequence number and the still base64 encoded data of all records of a Kinesis
+   * event.
+   * @param input Kinesis event. The reader isn't closed.
+   * @param consumer Receives the records in their order.
+   * @return Number of records found.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   */
+  public static int extractKinesisRecords(Reader input, RecordConsumer consumer)
+      throws IOException {
+    return extractRecords(input, consumer, FIELD_KINESIS, FIELD_KINESIS_ID,
+        FIELD_KINESIS_PAYLOAD);
+  }
+
+  private static int extractRecords(Reader input, RecordConsumer consumer, String nestedField,
+                                    String idField, String payloadField) throws IOException {
+    JsonReader reader = new JsonReader(input);
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return 0;
+    }
+
+    int records = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (FIELD_RECORDS.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          String[] record = new String[2];
+          if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+              String name = reader.nextName();
+              if (nestedField != null && nestedField.equals(name)
+                  && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                  readRecordField(reader, reader.nextName(), idField, payloadField, record);
+                }
+                reader.endObject();
+              } else if (nestedField == null) {
+                readRecordField(reader, name, idField, payloadField, record);
+              } else {
+                reader.skipValue();
+              }
+            }
+            reader.endObject();
+          } else {
+            reader.skipValue();
+          }
+
+          if (record[1] != null) {
+            consumer.accept(record[0], record[1]);
+            records++;
+          }
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return records;
+  }
+
+  private static void readRecordField(JsonReader reader, String name, String idField,
+                                      String payloadField, String[] record) throws IOException {
+    if (reader.peek() != JsonToken.STRING) {
+      reader.skipValue();
+    } else if (idField.equals(name)) {
+      record[0] = reader.nextString();
+    } else if (payloadField.equals(name)) {
+      record[1] = reader.nextString();
+    } else {
+      reader.skipValue();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries with an exponentially growing, randomized delay. The delay for a retry is chosen
+ * uniformly between zero and the base delay doubled for every previous failure, capped by the
+ * maximum delay. Writers colliding on the same document hence spread out instead of colliding
+ * again. The total number of retries of an invocation is limited by a budget.
+ *
+ * @author Udo Held
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+  private final int maxAttempts;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final int retryBudget;
+  private final AtomicInteger retryCount = new AtomicInteger();
+
+  /**
+   * Creates a new retry policy.
+   * @param maxAttempts Maximum number of attempts of a single write.
+   * @param baseDelay Maximum delay in milliseconds before the first retry.
+   * @param maxDelay Upper limit of the delay in milliseconds.
+   * @param retryBudget Maximum number of retries for all writes using this policy.
+   */
+  public ExponentialBackoffRetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+                                       int retryBudget) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.retryBudget = retryBudget;
+  }
+
+  @Override
+  public boolean retry(int failedAttempts) {
+    if (failedAttempts >= maxAttempts) {
+      return false;
+    }
+    if (retryCount.getAndUpdate(x -> x < retryBudget ? x + 1 : x) >= retryBudget) {
+      return false;
+    }
+
+    long delay = calculateDelay(failedAttempts);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Calculates a random delay for the retry after the given number of failed attempts.
+   * @param failedAttempts Number of failed attempts, starting at 1.
+   * @return Delay in milliseconds.
+   */
+  long calculateDelay(int failedAttempts) {
+    long upperLimit = Math.min(maxDelay, baseDelay << Math.min(failedAttempts - 1, 30));
+    return upperLimit <= 0 ? 0 : ThreadLocalRandom.current().nextLong(upperLimit + 1);
+  }
+
+  @Override
+  public int getRetryCount() {
+    return retryCount.get();
+  }
+}
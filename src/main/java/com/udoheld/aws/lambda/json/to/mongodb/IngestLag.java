@@ -0,0 +1,228 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonWriter;
+
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Count;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Value;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects how far the measurements of an invocation lag behind its start, per device and
+ * measurement type. The lags are kept in histograms with fixed buckets, hence the percentiles
+ * are the upper limits of the buckets they fall into. Measurements may be recorded concurrently.
+ * Documents older than the configured number of days are counted as backfilled.
+ *
+ * @author Udo Held
+ */
+public class IngestLag {
+  static final long[] BUCKET_LIMITS_SECONDS = {1, 5, 10, 30, 60, 300, 900, 3600, 3 * 3600,
+      6 * 3600, 12 * 3600, 86400, 2 * 86400, 7 * 86400, 30 * 86400, 90 * 86400, 365 * 86400};
+
+  private static final int REPORTED_GROUPS = 10;
+
+  private final long startSeconds;
+  private final LocalDate backfillDate;
+  private final Map<String, Map<String, Histogram>> groups = new ConcurrentHashMap<>();
+  private final LongAdder backfillDocuments = new LongAdder();
+
+  /**
+   * Starts collecting the lags of an invocation.
+   * @param startMillis Start of the invocation in milliseconds since the epoch.
+   * @param backfillDays Documents older than this number of days are backfilled. 0 disables it.
+   */
+  public IngestLag(long startMillis, int backfillDays) {
+    this.startSeconds = TimeUnit.MILLISECONDS.toSeconds(startMillis);
+    this.backfillDate = backfillDays > 0
+        ? LocalDate.ofEpochDay(TimeUnit.SECONDS.toDays(startSeconds) - backfillDays) : null;
+  }
+
+  /**
+   * Records the lag of a measurement. Measurements from the future have no lag.
+   * @param device Device of the measurement.
+   * @param type Type of the measurement.
+   * @param timestamp Unix timestamp of the measurement.
+   */
+  public void record(String device, String type, long timestamp) {
+    Map<String, Histogram> types = groups.get(device);
+    if (types == null) {
+      types = groups.computeIfAbsent(device, x -> new ConcurrentHashMap<>());
+    }
+    Histogram histogram = types.get(type);
+    if (histogram == null) {
+      histogram = types.computeIfAbsent(type, x -> new Histogram());
+    }
+    histogram.record(Math.max(0, startSeconds - timestamp));
+  }
+
+  /**
+   * Counts a written document, if it's older than the configured number of days.
+   * @param date Date of the document.
+   * @return true, if the document is backfilled.
+   */
+  public boolean recordDocument(LocalDate date) {
+    if (backfillDate != null && date != null && date.isBefore(backfillDate)) {
+      backfillDocuments.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of backfilled documents.
+   * @return Documents older than the configured number of days.
+   */
+  public long getBackfillDocuments() {
+    return backfillDocuments.sum();
+  }
+
+  /**
+   * Returns the date documents are considered as backfilled before.
+   * @return Date or null, if disabled.
+   */
+  public LocalDate getBackfillDate() {
+    return backfillDate;
+  }
+
+  /**
+   * Adds the percentiles and the maximum of all measurements and the backfilled documents to the
+   * metrics. The groups with the largest lag are added as property "IngestLag".
+   * @param metrics Metrics of the invocation.
+   */
+  public void report(InvocationMetrics metrics) {
+    if (!metrics.isEnabled()) {
+      return;
+    }
+    metrics.add(Count.BACKFILL_DOCUMENTS, backfillDocuments.sum());
+    List<Group> reported = new ArrayList<>();
+    Histogram total = new Histogram();
+    groups.forEach((device, types) -> types.forEach((type, histogram) -> {
+      reported.add(new Group(device, type, histogram));
+      total.add(histogram);
+    }));
+    if (total.count() == 0) {
+      return;
+    }
+    metrics.set(Value.INGEST_LAG_P50, total.percentile(0.5));
+    metrics.set(Value.INGEST_LAG_P90, total.percentile(0.9));
+    metrics.set(Value.INGEST_LAG_P99, total.percentile(0.99));
+    metrics.set(Value.INGEST_LAG_MAX, total.max.get());
+
+    reported.sort(Comparator.comparingLong((Group group) -> group.histogram.max.get()).reversed());
+    List<Group> largest = reported.subList(0, Math.min(REPORTED_GROUPS, reported.size()));
+    metrics.addProperty("IngestLag", writer -> {
+      writer.beginObject();
+      writer.name("groups").value(reported.size());
+      writer.name("largest").beginArray();
+      for (Group group : largest) {
+        group.write(writer);
+      }
+      writer.endArray();
+      writer.endObject();
+    });
+  }
+
+  private static final class Group {
+    private final String device;
+    private final String type;
+    private final Histogram histogram;
+
+    private Group(String device, String type, Histogram histogram) {
+      this.device = device;
+      this.type = type;
+      this.histogram = histogram;
+    }
+
+    private void write(JsonWriter writer) throws IOException {
+      writer.beginObject();
+      writer.name("device").value(device);
+      writer.name("type").value(type);
+      writer.name("count").value(histogram.count());
+      writer.name("p50").value(histogram.percentile(0.5));
+      writer.name("p90").value(histogram.percentile(0.9));
+      writer.name("p99").value(histogram.percentile(0.99));
+      writer.name("max").value(histogram.max.get());
+      writer.endObject();
+    }
+  }
+
+  /**
+   * Histogram of lags in seconds, including a bucket for lags beyond the largest limit.
+   */
+  static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_LIMITS_SECONDS.length + 1];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long seconds) {
+      int bucket = 0;
+      while (bucket < BUCKET_LIMITS_SECONDS.length && seconds >= BUCKET_LIMITS_SECONDS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      max.accumulate(seconds);
+    }
+
+    void add(Histogram histogram) {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i].add(histogram.buckets[i].sum());
+      }
+      max.accumulate(histogram.max.get());
+    }
+
+    long count() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    /**
+     * Returns the upper limit of the bucket containing the percentile, but at most the maximum.
+     */
+    long percentile(double percentile) {
+      long rank = (long) Math.ceil(percentile * count());
+      long seen = 0;
+      for (int i = 0; i < BUCKET_LIMITS_SECONDS.length; i++) {
+        seen += buckets[i].sum();
+        if (seen >= rank) {
+          return Math.min(BUCKET_LIMITS_SECONDS[i], max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+}
@@ -0,0 +1,544 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonWriter;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the time spent within the phases of a single invocation and the number of processed
+ * items. They are logged as a single line in the CloudWatch Embedded Metric Format, so CloudWatch
+ * extracts them as metrics from the log. Times and counts may be added concurrently. The times of
+ * concurrent writers are summed up, hence they may exceed the duration of the invocation.
+ * Optionally the bytes allocated by every phase, the garbage collections and the peak heap usage
+ * are collected as well. Metrics collected only for the result of an invocation aren't logged.
+ *
+ * @author Udo Held
+ */
+public class InvocationMetrics {
+
+  /**
+   * Disabled metrics, which neither collect nor log anything.
+   */
+  public static final InvocationMetrics DISABLED = new InvocationMetrics();
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+  private static final Timer DISABLED_TIMER = new Timer(null, null, new long[2], false, 0, 0);
+
+  /**
+   * Phases of an invocation. Nested phases are excluded from the time of their enclosing phase.
+   */
+  public enum Phase {
+    READ("ReadTime", "ReadAllocatedBytes"),
+    EXTRACTION("ExtractionTime", "ExtractionAllocatedBytes"),
+    PARSE("ParseTime", "ParseAllocatedBytes"),
+    GROUPING("GroupingTime", "GroupingAllocatedBytes"),
+    MERGE("MergeTime", "MergeAllocatedBytes"),
+    MONGODB_READ("MongoDbReadTime", "MongoDbReadAllocatedBytes"),
+    MONGODB_WRITE("MongoDbWriteTime", "MongoDbWriteAllocatedBytes"),
+    RETRY("RetryDelayTime", "RetryDelayAllocatedBytes");
+
+    private final String metricName;
+    private final String allocationMetricName;
+
+    Phase(String metricName, String allocationMetricName) {
+      this.metricName = metricName;
+      this.allocationMetricName = allocationMetricName;
+    }
+
+    public String getMetricName() {
+      return metricName;
+    }
+  }
+
+  /**
+   * Counted items of an invocation.
+   */
+  public enum Count {
+    RECORDS("Records"),
+    FAILED_RECORDS("FailedRecords"),
+    MEASUREMENTS("Measurements"),
+    REJECTED_MEASUREMENTS("RejectedMeasurements"),
+    DOCUMENTS("Documents"),
+    INSERTED_DOCUMENTS("InsertedDocuments"),
+    UPDATED_DOCUMENTS("UpdatedDocuments"),
+    UNCHANGED_DOCUMENTS("UnchangedDocuments"),
+    FAILED_DOCUMENTS("FailedDocuments"),
+    RETRIES("Retries"),
+    MONGODB_COMMANDS("MongoDbCommands"),
+    MONGODB_FAILED_COMMANDS("MongoDbFailedCommands"),
+    MONGODB_CONNECTIONS_USED("MongoDbConnectionsUsed"),
+    MONGODB_CONNECTION_POOLS("MongoDbConnectionPools"),
+    MONGODB_POOLED_CONNECTIONS("MongoDbPooledConnections"),
+    BACKFILL_DOCUMENTS("BackfillDocuments");
+
+    private final String metricName;
+
+    Count(String metricName) {
+      this.metricName = metricName;
+    }
+  }
+
+  /**
+   * Values determined once per invocation. They are only logged if they have been set.
+   */
+  public enum Value {
+    INGEST_LAG_P50("IngestLagP50", "Seconds"),
+    INGEST_LAG_P90("IngestLagP90", "Seconds"),
+    INGEST_LAG_P99("IngestLagP99", "Seconds"),
+    INGEST_LAG_MAX("IngestLagMax", "Seconds");
+
+    private final String metricName;
+    private final String unit;
+
+    Value(String metricName, String unit) {
+      this.metricName = metricName;
+      this.unit = unit;
+    }
+  }
+
+  private final boolean enabled;
+  private final boolean logged;
+  private final boolean allocation;
+  private final String namespace;
+  private final String functionName;
+  private final long startTime;
+  private final long startAllocatedBytes;
+  private final long startGcCount;
+  private final long startGcTime;
+  private final LongAdder[] times = new LongAdder[Phase.values().length];
+  private final LongAdder[] allocatedBytes = new LongAdder[Phase.values().length];
+  private final LongAdder[] counts = new LongAdder[Count.values().length];
+  // Time and allocated bytes of all phases stopped on a thread, used to exclude nested phases.
+  private final ThreadLocal<long[]> threadPhaseTotals = ThreadLocal.withInitial(
+      () -> new long[2]);
+  private final Map<Value, Long> values = new EnumMap<>(Value.class);
+  private final Map<String, PropertyWriter> properties = new LinkedHashMap<>();
+  private final List<MongoSensorData.Id> failedDocuments = new ArrayList<>();
+
+  private InvocationMetrics() {
+    this.enabled = false;
+    this.logged = false;
+    this.allocation = false;
+    this.namespace = null;
+    this.functionName = null;
+    this.startTime = 0;
+    this.startAllocatedBytes = 0;
+    this.startGcCount = 0;
+    this.startGcTime = 0;
+  }
+
+  /**
+   * Starts collecting the metrics of an invocation.
+   * @param namespace CloudWatch namespace of the metrics.
+   * @param functionName Name of the function used as dimension. May be null.
+   */
+  public InvocationMetrics(String namespace, String functionName) {
+    this(namespace, functionName, false);
+  }
+
+  /**
+   * Starts collecting the metrics of an invocation on the current thread.
+   * @param namespace CloudWatch namespace of the metrics.
+   * @param functionName Name of the function used as dimension. May be null.
+   * @param allocation Collects the allocated bytes, garbage collections and peak heap usage.
+   */
+  public InvocationMetrics(String namespace, String functionName, boolean allocation) {
+    this(namespace, functionName, allocation, true);
+  }
+
+  private InvocationMetrics(String namespace, String functionName, boolean allocation,
+                            boolean logged) {
+    this.enabled = true;
+    this.logged = logged;
+    this.allocation = allocation;
+    this.namespace = namespace;
+    this.functionName = functionName;
+    for (int i = 0; i < times.length; i++) {
+      times[i] = new LongAdder();
+      allocatedBytes[i] = new LongAdder();
+    }
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+    if (allocation) {
+      MemoryTelemetry.resetPeakHeap();
+      this.startGcCount = MemoryTelemetry.getGcCount();
+      this.startGcTime = MemoryTelemetry.getGcTime();
+      this.startAllocatedBytes = MemoryTelemetry.getAllocatedBytes();
+    } else {
+      this.startGcCount = 0;
+      this.startGcTime = 0;
+      this.startAllocatedBytes = 0;
+    }
+    this.startTime = System.nanoTime();
+  }
+
+  /**
+   * Creates the metrics of an invocation, if they are enabled by the configuration.
+   * @param config Configuration of the invocation.
+   * @param context Context of the invocation.
+   * @return New metrics or {@link #DISABLED}.
+   */
+  public static InvocationMetrics forInvocation(Config config, Context context) {
+    return forInvocation(config, context, false);
+  }
+
+  /**
+   * Creates the metrics of an invocation, if they are enabled by the configuration or required
+   * for the result of the invocation. Metrics which are only required for the result aren't
+   * logged.
+   * @param config Configuration of the invocation.
+   * @param context Context of the invocation.
+   * @param required Collects the metrics even if they aren't enabled.
+   * @return New metrics or {@link #DISABLED}.
+   */
+  public static InvocationMetrics forInvocation(Config config, Context context,
+                                                boolean required) {
+    if (!config.isMetrics() && !required) {
+      return DISABLED;
+    }
+    return new InvocationMetrics(config.getMetricsNamespace(), context.getFunctionName(),
+        config.isMetrics() && config.isMetricsAllocation(), config.isMetrics());
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isLogged() {
+    return enabled && logged;
+  }
+
+  /**
+   * Starts timing a phase on the current thread. Phases started and stopped on the same thread
+   * while it's running are excluded from its time, phases of other threads aren't. The timer
+   * needs to be stopped on the same thread.
+   * @param phase Phase to be timed.
+   * @return Timer which needs to be stopped.
+   */
+  public Timer start(Phase phase) {
+    return start(phase, allocation);
+  }
+
+  private Timer start(Phase phase, boolean withAllocation) {
+    if (!enabled) {
+      return DISABLED_TIMER;
+    }
+    long[] totals = threadPhaseTotals.get();
+    if (withAllocation) {
+      return new Timer(this, phase, totals, true, System.nanoTime(),
+          MemoryTelemetry.getAllocatedBytes());
+    }
+    return new Timer(this, phase, totals, false, System.nanoTime(), 0);
+  }
+
+  /**
+   * Starts timing a phase on the current thread without collecting its allocations. Reading the
+   * allocation counter costs more than timing, so it's meant for very short phases. Their
+   * allocations are attributed to the enclosing phase.
+   * @param phase Phase to be timed.
+   * @return Timer which needs to be stopped.
+   */
+  public Timer startTiming(Phase phase) {
+    return start(phase, false);
+  }
+
+  /**
+   * Adds to the count of an item.
+   * @param count Counted item.
+   * @param value Value to be added.
+   */
+  public void add(Count count, long value) {
+    if (enabled) {
+      counts[count.ordinal()].add(value);
+    }
+  }
+
+  /**
+   * Increments the count of an item.
+   * @param count Counted item.
+   */
+  public void increment(Count count) {
+    if (enabled) {
+      counts[count.ordinal()].increment();
+    }
+  }
+
+  /**
+   * Returns the time spent within a phase.
+   * @param phase Phase.
+   * @return Time in nanoseconds.
+   */
+  public long getTime(Phase phase) {
+    return enabled ? times[phase.ordinal()].sum() : 0;
+  }
+
+  /**
+   * Returns the count of an item.
+   * @param count Counted item.
+   * @return Count.
+   */
+  public long getCount(Count count) {
+    return enabled ? counts[count.ordinal()].sum() : 0;
+  }
+
+  /**
+   * Sets a value.
+   * @param value Value to be set.
+   * @param amount Amount in the unit of the value.
+   */
+  public synchronized void set(Value value, long amount) {
+    if (enabled) {
+      values.put(value, amount);
+    }
+  }
+
+  /**
+   * Returns a value.
+   * @param value Value.
+   * @return Amount or null, if it hasn't been set.
+   */
+  public synchronized Long getValue(Value value) {
+    return values.get(value);
+  }
+
+  /**
+   * Counts a document which couldn't be written and keeps its id.
+   * @param id Id of the document.
+   */
+  public void addFailedDocument(MongoSensorData.Id id) {
+    if (enabled) {
+      counts[Count.FAILED_DOCUMENTS.ordinal()].increment();
+      synchronized (failedDocuments) {
+        failedDocuments.add(id);
+      }
+    }
+  }
+
+  /**
+   * Returns the ids of the documents which couldn't be written.
+   * @return Copy of the ids.
+   */
+  public List<MongoSensorData.Id> getFailedDocuments() {
+    synchronized (failedDocuments) {
+      return new ArrayList<>(failedDocuments);
+    }
+  }
+
+  /**
+   * Returns the time since the metrics were created.
+   * @return Time in nanoseconds.
+   */
+  public long getTotalTime() {
+    return enabled ? System.nanoTime() - startTime : 0;
+  }
+
+  /**
+   * Returns the bytes allocated within a phase.
+   * @param phase Phase.
+   * @return Allocated bytes or 0, if the allocations aren't collected.
+   */
+  public long getAllocatedBytes(Phase phase) {
+    return enabled ? allocatedBytes[phase.ordinal()].sum() : 0;
+  }
+
+  /**
+   * Adds a property, which is logged together with the metrics but isn't a metric itself.
+   * @param name Name of the property.
+   * @param writer Writes the JSON value of the property when the metrics are logged.
+   */
+  public synchronized void addProperty(String name, PropertyWriter writer) {
+    if (enabled) {
+      properties.put(name, writer);
+    }
+  }
+
+  private void addTime(Phase phase, long nanos, long[] totals) {
+    long time = Math.max(0, nanos);
+    times[phase.ordinal()].add(time);
+    totals[0] += time;
+  }
+
+  private void addAllocatedBytes(Phase phase, long bytes, long[] totals) {
+    long allocated = Math.max(0, bytes);
+    allocatedBytes[phase.ordinal()].add(allocated);
+    totals[1] += allocated;
+  }
+
+  /**
+   * Logs the metrics as a single line in the Embedded Metric Format, if they are enabled and
+   * haven't only been collected for the result of the invocation.
+   * @param logger Logger of the invocation.
+   */
+  public void log(LambdaLogger logger) {
+    if (isLogged()) {
+      logger.log(toEmf(System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Formats the metrics in the Embedded Metric Format.
+   * @param timestamp Timestamp of the metrics in milliseconds since the epoch.
+   * @return JSON object.
+   */
+  public synchronized String toEmf(long timestamp) {
+    long totalTime = System.nanoTime() - startTime;
+    long totalAllocatedBytes = allocation
+        ? MemoryTelemetry.getAllocatedBytes() - startAllocatedBytes : 0;
+    StringWriter json = new StringWriter();
+    try (JsonWriter writer = new JsonWriter(json)) {
+      writer.beginObject();
+      writer.name("_aws").beginObject();
+      writer.name("Timestamp").value(timestamp);
+      writer.name("CloudWatchMetrics").beginArray().beginObject();
+      writer.name("Namespace").value(namespace);
+      writer.name("Dimensions").beginArray().beginArray();
+      if (functionName != null) {
+        writer.value("FunctionName");
+      }
+      writer.endArray().endArray();
+      writer.name("Metrics").beginArray();
+      writeDefinition(writer, "TotalTime", "Milliseconds");
+      for (Phase phase : Phase.values()) {
+        writeDefinition(writer, phase.metricName, "Milliseconds");
+      }
+      for (Count count : Count.values()) {
+        writeDefinition(writer, count.metricName, "Count");
+      }
+      for (Value value : values.keySet()) {
+        writeDefinition(writer, value.metricName, value.unit);
+      }
+      if (allocation) {
+        writeDefinition(writer, "AllocatedBytes", "Bytes");
+        for (Phase phase : Phase.values()) {
+          writeDefinition(writer, phase.allocationMetricName, "Bytes");
+        }
+        writeDefinition(writer, "GcCount", "Count");
+        writeDefinition(writer, "GcTime", "Milliseconds");
+        writeDefinition(writer, "PeakHeapBytes", "Bytes");
+      }
+      writer.endArray();
+      writer.endObject().endArray();
+      writer.endObject();
+
+      if (functionName != null) {
+        writer.name("FunctionName").value(functionName);
+      }
+      writer.name("TotalTime").value(totalTime / NANOS_PER_MILLI);
+      for (Phase phase : Phase.values()) {
+        writer.name(phase.metricName).value(getTime(phase) / NANOS_PER_MILLI);
+      }
+      for (Count count : Count.values()) {
+        writer.name(count.metricName).value(getCount(count));
+      }
+      for (Map.Entry<Value, Long> value : values.entrySet()) {
+        writer.name(value.getKey().metricName).value(value.getValue());
+      }
+      if (allocation) {
+        writer.name("AllocatedBytes").value(totalAllocatedBytes);
+        for (Phase phase : Phase.values()) {
+          writer.name(phase.allocationMetricName).value(getAllocatedBytes(phase));
+        }
+        writer.name("GcCount").value(MemoryTelemetry.getGcCount() - startGcCount);
+        writer.name("GcTime").value(MemoryTelemetry.getGcTime() - startGcTime);
+        writer.name("PeakHeapBytes").value(MemoryTelemetry.getPeakHeap());
+      }
+      for (Map.Entry<String, PropertyWriter> property : properties.entrySet()) {
+        writer.name(property.getKey());
+        property.getValue().write(writer);
+      }
+      writer.endObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return json.toString();
+  }
+
+  private void writeDefinition(JsonWriter writer, String name, String unit) throws IOException {
+    writer.beginObject();
+    writer.name("Name").value(name);
+    writer.name("Unit").value(unit);
+    writer.endObject();
+  }
+
+  /**
+   * Writes the value of a property.
+   */
+  @FunctionalInterface
+  public interface PropertyWriter {
+    void write(JsonWriter writer) throws IOException;
+  }
+
+  /**
+   * Measures the time of a running phase.
+   */
+  public static final class Timer {
+    private final InvocationMetrics metrics;
+    private final Phase phase;
+    private final long[] totals;
+    private final boolean allocation;
+    private final long start;
+    private final long nestedStart;
+    private final long allocatedStart;
+    private final long nestedAllocatedStart;
+
+    private Timer(InvocationMetrics metrics, Phase phase, long[] totals, boolean allocation,
+                  long start, long allocatedStart) {
+      this.metrics = metrics;
+      this.phase = phase;
+      this.totals = totals;
+      this.allocation = allocation;
+      this.start = start;
+      this.nestedStart = totals[0];
+      this.allocatedStart = allocatedStart;
+      this.nestedAllocatedStart = totals[1];
+    }
+
+    /**
+     * Stops the timer and adds the time spent and the bytes allocated within the phase,
+     * excluding the ones of the phases stopped meanwhile on the same thread.
+     */
+    public void stop() {
+      if (metrics != null) {
+        long nested = totals[0] - nestedStart;
+        long nestedAllocated = totals[1] - nestedAllocatedStart;
+        metrics.addTime(phase, System.nanoTime() - start - nested, totals);
+        if (allocation) {
+          metrics.addAllocatedBytes(phase,
+              MemoryTelemetry.getAllocatedBytes() - allocatedStart - nestedAllocated, totals);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Profiles a sampled fraction of the invocations using a Java Flight Recorder recording. The
+ * recording samples the executed methods and the allocations. It's written to the temporary
+ * directory and summarized into the log as the hottest methods and allocation sites. Only the
+ * recording of the latest profiled invocation of the container is kept.
+ *
+ * @author Udo Held
+ */
+public class InvocationProfiler {
+  /**
+   * Profiler of invocations which aren't profiled.
+   */
+  public static final InvocationProfiler DISABLED = new InvocationProfiler(null, 0);
+
+  private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+  private static final String ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+  private static final String ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+  private static final Duration SAMPLE_PERIOD = Duration.ofMillis(10);
+  private static final String[] JDK_PACKAGES = {"java.", "javax.", "jdk.", "sun.", "com.sun."};
+
+  private static final AtomicReference<Path> lastRecording = new AtomicReference<>();
+
+  private final JfrRecording recording;
+  private final int topEntries;
+
+  private InvocationProfiler(JfrRecording recording, int topEntries) {
+    this.recording = recording;
+    this.topEntries = topEntries;
+  }
+
+  /**
+   * Starts profiling the invocation, if it's sampled.
+   * @param config Configuration of the invocation.
+   * @param logger Logger of the invocation.
+   * @return Profiler of the invocation or DISABLED, if it isn't profiled.
+   */
+  public static InvocationProfiler forInvocation(Config config, LambdaLogger logger) {
+    int percent = config.getProfilingSamplePercent();
+    if (percent <= 0 || ThreadLocalRandom.current().nextInt(100) >= percent) {
+      return DISABLED;
+    }
+    try {
+      return new InvocationProfiler(new JfrRecording(config.getProfilingMaxSize()),
+          config.getProfilingTopEntries());
+    } catch (LinkageError | RuntimeException e) {
+      logger.log("Unable to start the Java Flight Recorder. " + e.getMessage());
+      return DISABLED;
+    }
+  }
+
+  /**
+   * Checks if the invocation is profiled.
+   * @return true, if a recording is running.
+   */
+  public boolean isEnabled() {
+    return recording != null;
+  }
+
+  /**
+   * Stops the recording, writes it and logs its summary. Failures are only logged.
+   * @param logger Logger of the invocation.
+   * @return The written recording or null, if the invocation isn't profiled.
+   */
+  public Path stop(LambdaLogger logger) {
+    if (recording == null) {
+      return null;
+    }
+    try {
+      Path path = recording.stop();
+      Path previous = lastRecording.getAndSet(path);
+      if (previous != null) {
+        Files.deleteIfExists(previous);
+      }
+      logger.log(summarize(path));
+      return path;
+    } catch (IOException | RuntimeException e) {
+      logger.log("Unable to write the Java Flight Recorder recording. " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Summarizes the methods on top of the sampled stack traces and the sites allocating the most
+   * bytes.
+   */
+  private String summarize(Path path) throws IOException {
+    Map<String, Long> methods = new HashMap<>();
+    Map<String, Long> allocations = new HashMap<>();
+    long samples = 0;
+    long allocated = 0;
+    try (RecordingFile file = new RecordingFile(path)) {
+      while (file.hasMoreEvents()) {
+        RecordedEvent event = file.readEvent();
+        String name = event.getEventType().getName();
+        if (EXECUTION_SAMPLE.equals(name)) {
+          String method = topFrame(event.getStackTrace(), false);
+          if (method != null) {
+            methods.merge(method, 1L, Long::sum);
+            samples++;
+          }
+        } else if (ALLOCATION_IN_NEW_TLAB.equals(name) || ALLOCATION_OUTSIDE_TLAB.equals(name)) {
+          String site = topFrame(event.getStackTrace(), true);
+          long size = ALLOCATION_IN_NEW_TLAB.equals(name) ? event.getLong("tlabSize")
+              : event.getLong("allocationSize");
+          if (site != null) {
+            allocations.merge(site, size, Long::sum);
+            allocated += size;
+          }
+        }
+      }
+    }
+
+    StringBuilder summary = new StringBuilder("Profile of ").append(samples)
+        .append(" execution sample(s) written to ").append(path).append(" (")
+        .append(Files.size(path)).append(" bytes).\nHot methods:");
+    for (Map.Entry<String, Long> method : top(methods)) {
+      summary.append(String.format(Locale.ROOT, "%n%8d %5.1f%% %s", method.getValue(),
+          100.0 * method.getValue() / samples, method.getKey()));
+    }
+    summary.append("\nAllocation sites:");
+    for (Map.Entry<String, Long> site : top(allocations)) {
+      summary.append(String.format(Locale.ROOT, "%n%8d KiB %5.1f%% %s", site.getValue() / 1024,
+          100.0 * site.getValue() / allocated, site.getKey()));
+    }
+    return summary.toString();
+  }
+
+  private List<Map.Entry<String, Long>> top(Map<String, Long> values) {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>(values.entrySet());
+    entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+    return entries.subList(0, Math.min(topEntries, entries.size()));
+  }
+
+  /**
+   * Returns the method on top of the stack trace. Allocation sites skip the frames of the JDK,
+   * as they would mostly point to array copies, and include the line number.
+   */
+  private static String topFrame(RecordedStackTrace stackTrace, boolean allocationSite) {
+    if (stackTrace == null) {
+      return null;
+    }
+    String top = null;
+    for (RecordedFrame frame : stackTrace.getFrames()) {
+      if (!frame.isJavaFrame()) {
+        continue;
+      }
+      String type = frame.getMethod().getType().getName();
+      String method = type + "." + frame.getMethod().getName();
+      if (!allocationSite) {
+        return method;
+      }
+      method = frame.getLineNumber() > 0 ? method + ":" + frame.getLineNumber() : method;
+      if (top == null) {
+        top = method;
+      }
+      if (!isJdkType(type)) {
+        return method;
+      }
+    }
+    return top;
+  }
+
+  private static boolean isJdkType(String type) {
+    for (String prefix : JDK_PACKAGES) {
+      if (type.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Recording of an invocation. Kept separately, so the JFR classes are only loaded once an
+   * invocation gets profiled.
+   */
+  private static final class JfrRecording {
+    private final Recording recording = new Recording();
+
+    private JfrRecording(long maxSize) {
+      recording.setName("invocation");
+      recording.setToDisk(true);
+      recording.setMaxSize(maxSize);
+      recording.enable(EXECUTION_SAMPLE).withPeriod(SAMPLE_PERIOD);
+      recording.enable(ALLOCATION_IN_NEW_TLAB).withStackTrace();
+      recording.enable(ALLOCATION_OUTSIDE_TLAB).withStackTrace();
+      recording.start();
+    }
+
+    private Path stop() throws IOException {
+      try {
+        recording.stop();
+        Path path = Files.createTempFile(Paths.get(System.getProperty("java.io.tmpdir")),
+            "invocation-", ".jfr");
+        recording.dump(path);
+        return path;
+      } finally {
+        recording.close();
+      }
+    }
+  }
+}
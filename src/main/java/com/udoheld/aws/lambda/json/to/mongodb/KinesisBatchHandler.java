@@ -0,0 +1,37 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Handler for Kinesis events. The data of every record holds JSON or CBOR input, optionally
+ * compressed. Failed records are reported by their sequence number.
+ *
+ * @author Udo Held
+ */
+public class KinesisBatchHandler extends BatchHandler {
+
+  @Override
+  protected List<String> processBatch(ProcessDataHandler pdh, Reader input) throws IOException {
+    return pdh.processKinesisBatch(input);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Unpacks Kinesis records aggregated by the Kinesis Producer Library. An aggregated record
+ * starts with a magic number, followed by the protobuf encoded {@code AggregatedRecord} and the
+ * MD5 checksum of it. Only the data of the contained user records is extracted, partition keys,
+ * explicit hash keys and tags are skipped. Records without the magic number or with a wrong
+ * checksum aren't aggregated and are passed on as they are.
+ *
+ * @author Udo Held
+ */
+public class KplDeaggregator {
+  private static final byte[] MAGIC = {(byte) 0xf3, (byte) 0x89, (byte) 0x9a, (byte) 0xc2};
+  private static final int CHECKSUM_LENGTH = 16;
+
+  private static final int FIELD_RECORDS = 3;
+  private static final int FIELD_RECORD_DATA = 3;
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+
+  /**
+   * Receives the data of the user records.
+   */
+  @FunctionalInterface
+  public interface RecordConsumer {
+    /**
+     * Accepts the data of a single user record.
+     * @param buffer Buffer holding the data.
+     * @param offset Start of the data within the buffer.
+     * @param length Length of the data.
+     * @throws IOException if the data can't be processed.
+     */
+    void accept(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  /**
+   * Passes the data of all user records on. A record which isn't aggregated is passed on as it
+   * is.
+   * @param data Data of the Kinesis record.
+   * @param consumer Receives the user records in their order.
+   * @return Number of user records.
+   * @throws IOException if the aggregated record is corrupt.
+   */
+  public static int deaggregate(byte[] data, RecordConsumer consumer) throws IOException {
+    if (!isAggregated(data)) {
+      consumer.accept(data, 0, data.length);
+      return 1;
+    }
+
+    int records = 0;
+    ProtobufReader reader = new ProtobufReader(data, MAGIC.length,
+        data.length - CHECKSUM_LENGTH);
+    while (reader.hasNext()) {
+      int key = (int) reader.readVarint();
+      if (key >>> 3 == FIELD_RECORDS && (key & 0x07) == WIRE_LENGTH_DELIMITED) {
+        int length = reader.readLength();
+        readRecord(new ProtobufReader(data, reader.position, reader.position + length),
+            consumer);
+        reader.position += length;
+        records++;
+      } else {
+        reader.skip(key & 0x07);
+      }
+    }
+    return records;
+  }
+
+  private static void readRecord(ProtobufReader reader, RecordConsumer consumer)
+      throws IOException {
+    while (reader.hasNext()) {
+      int key = (int) reader.readVarint();
+      if (key >>> 3 == FIELD_RECORD_DATA && (key & 0x07) == WIRE_LENGTH_DELIMITED) {
+        int length = reader.readLength();
+        consumer.accept(reader.buffer, reader.position, length);
+        reader.position += length;
+      } else {
+        reader.skip(key & 0x07);
+      }
+    }
+  }
+
+  private static boolean isAggregated(byte[] data) {
+    if (data.length <= MAGIC.length + CHECKSUM_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 isn't supported by this JVM.", e);
+    }
+    md5.update(data, MAGIC.length, data.length - MAGIC.length - CHECKSUM_LENGTH);
+    return Arrays.equals(md5.digest(),
+        Arrays.copyOfRange(data, data.length - CHECKSUM_LENGTH, data.length));
+  }
+
+  /**
+   * Reads the protobuf wire format within a part of a buffer.
+   */
+  private static class ProtobufReader {
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+
+    ProtobufReader(byte[] buffer, int position, int limit) {
+      this.buffer = buffer;
+      this.position = position;
+      this.limit = limit;
+    }
+
+    boolean hasNext() {
+      return position < limit;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position >= limit) {
+          throw new IOException("Truncated varint within aggregated record.");
+        }
+        byte current = buffer[position++];
+        value |= (long) (current & 0x7f) << shift;
+        if ((current & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Invalid varint within aggregated record.");
+    }
+
+    int readLength() throws IOException {
+      long length = readVarint();
+      if (length < 0 || length > limit - position) {
+        throw new IOException("Invalid length within aggregated record.");
+      }
+      return (int) length;
+    }
+
+    void skip(int wireType) throws IOException {
+      switch (wireType) {
+        case WIRE_VARINT:
+          readVarint();
+          break;
+        case WIRE_FIXED64:
+          skipBytes(8);
+          break;
+        case WIRE_LENGTH_DELIMITED:
+          int length = readLength();
+          position += length;
+          break;
+        case WIRE_FIXED32:
+          skipBytes(4);
+          break;
+        default:
+          throw new IOException("Unsupported wire type " + wireType
+              + " within aggregated record.");
+      }
+    }
+
+    private void skipBytes(int length) throws IOException {
+      if (length > limit - position) {
+        throw new IOException("Truncated field within aggregated record.");
+      }
+      position += length;
+    }
+  }
+}
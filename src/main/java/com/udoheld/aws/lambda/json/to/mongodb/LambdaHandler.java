@@ -18,69 +18,204 @@
 
 package com.udoheld.aws.lambda.json.to.mongodb;
 
+import com.google.gson.stream.JsonWriter;
+
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.udoheld.aws.lambda.json.to.mongodb.EnvelopeDetector.Envelope;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Count;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Phase;
 import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
 import com.udoheld.aws.lambda.json.to.mongodb.cfg.ConfigurationInitializer;
+import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Handler for direct JSON input messages.
+ * Handler for JSON input messages. They are either passed directly or within a SNS notification,
+ * a SQS event or a Kinesis event. The envelope is detected from the beginning of the input.
+ * Gzip or zlib compressed input is decompressed while reading it. SenML encoded as CBOR is
+ * detected by its first byte. The result of the invocation is written as JSON, unless it's
+ * disabled.
  * @author Udo Held
  */
 public class LambdaHandler implements RequestStreamHandler {
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
   @Override
   public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context)
       throws IOException {
+    InvocationMetrics metrics = InvocationMetrics.DISABLED;
+    InvocationProfiler profiler = InvocationProfiler.DISABLED;
+    boolean result = false;
+    String error = null;
     try {
       Config config = ConfigurationInitializer.initializeConfig(context,false);
+      String connectionUri = ConfigurationInitializer.buildConnectionUri(config);
+      result = config.isInvocationResult() && outputStream != null;
+      metrics = InvocationMetrics.forInvocation(config, context, result);
+      profiler = InvocationProfiler.forInvocation(config, context.getLogger());
 
-      String input = null;
-      try {
-        input = readInputStream(inputStream);
-      } catch (IOException expected) {
+      InvocationMetrics.Timer readTimer = metrics.start(Phase.READ);
+      InputStream input = new BufferedInputStream(PayloadDecoder.decompress(
+          new BufferedInputStream(inputStream), config.getMaxDecompressedBytes()),
+          EnvelopeDetector.DETECTION_LENGTH);
+      if (PayloadDecoder.isCbor(input)) {
+        readTimer.stop();
+        if (config.isDebugInput()) {
+          context.getLogger().log("The CBOR input isn't logged.");
+        }
+        final InputStream cborInput = input;
+        processInput(config, connectionUri, context, metrics,
+            pdh -> pdh.processInput(cborInput));
+        return;
       }
 
-      if (input != null && ! config.isDisableSnsRemoval() && input.contains("aws:sns")) {
-        input = SnsMessageExtractor.extractSnsMessage(input);
+      Envelope detectedEnvelope = EnvelopeDetector.detect(input);
+      final Envelope envelope = detectedEnvelope == Envelope.SNS && config.isDisableSnsRemoval()
+          ? Envelope.SENML : detectedEnvelope;
+      if (config.isDebug()) {
+        context.getLogger().log("Detected envelope: " + envelope);
       }
 
-      if (config.isDebugInput()) {
-        context.getLogger().log(input);
-      }
+      Reader reader;
+      if (config.isStreamingInput()) {
+        if (config.isDebugInput()) {
+          context.getLogger().log("The input isn't logged while streaming.");
+        }
+        reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+        readTimer.stop();
+      } else {
+        String message = null;
+        try {
+          message = readInputStream(input);
+        } catch (IOException expected) {
+        }
+        readTimer.stop();
 
-      String connectionUri = ConfigurationInitializer.buildConnectionUri(config);
+        if (config.isDebugInput()) {
+          context.getLogger().log(message);
+        }
 
-      ProcessDataHandler pdh = null;
-      try {
-        pdh = ProcessDataHandler.getProcessDataHandler(connectionUri, config.getMongoDbDatabase(),
-            config.isMongoDbKeepConnection(), config.isDebug(), context.getLogger());
-        pdh.processInput(input);
-      } finally {
-        if (!config.isMongoDbKeepConnection() && pdh != null) {
-          pdh.close();
+        if (message == null || envelope == Envelope.SENML) {
+          final String parsedMessage = message;
+          processInput(config, connectionUri, context, metrics,
+              pdh -> pdh.processInput(parsedMessage));
+          return;
         }
+        reader = new StringReader(message);
       }
+      processInput(config, connectionUri, context, metrics,
+          pdh -> processEnvelope(pdh, envelope, reader));
     } catch (Exception e) {
       context.getLogger().log(e.getMessage());
+      error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+    } finally {
+      profiler.stop(context.getLogger());
+      metrics.log(context.getLogger());
+      if (result) {
+        writeResult(outputStream, metrics, error);
+      }
+    }
+  }
+
+  /**
+   * Writes the counts, the ids of the documents which couldn't be written and the times of the
+   * phases. The error is only present, if the invocation failed. Documents which haven't been
+   * written yet at that point aren't reported as failed.
+   */
+  private void writeResult(OutputStream outputStream, InvocationMetrics metrics, String error)
+      throws IOException {
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream,
+        StandardCharsets.UTF_8));
+    writer.beginObject();
+    writer.name("measurements").beginObject();
+    writer.name("accepted").value(metrics.getCount(Count.MEASUREMENTS));
+    writer.name("rejected").value(metrics.getCount(Count.REJECTED_MEASUREMENTS));
+    writer.endObject();
+    writer.name("documents").beginObject();
+    writer.name("inserted").value(metrics.getCount(Count.INSERTED_DOCUMENTS));
+    writer.name("updated").value(metrics.getCount(Count.UPDATED_DOCUMENTS));
+    writer.name("unchanged").value(metrics.getCount(Count.UNCHANGED_DOCUMENTS));
+    writer.name("failed").value(metrics.getCount(Count.FAILED_DOCUMENTS));
+    writer.endObject();
+    writer.name("retries").value(metrics.getCount(Count.RETRIES));
+    writer.name("failedDocuments").beginArray();
+    for (MongoSensorData.Id id : metrics.getFailedDocuments()) {
+      writer.beginObject();
+      writer.name("device").value(id.getDevice());
+      writer.name("type").value(id.getType());
+      writer.name("date").value(String.valueOf(id.getDate()));
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.name("timesMs").beginObject();
+    writer.name("total").value(metrics.getTotalTime() / NANOS_PER_MILLI);
+    for (Phase phase : Phase.values()) {
+      String name = phase.getMetricName().substring(0, phase.getMetricName().length()
+          - "Time".length());
+      writer.name(Character.toLowerCase(name.charAt(0)) + name.substring(1))
+          .value(metrics.getTime(phase) / NANOS_PER_MILLI);
+    }
+    writer.endObject();
+    if (error != null) {
+      writer.name("error").value(error);
+    }
+    writer.endObject();
+    writer.flush();
+  }
+
+  private void processEnvelope(ProcessDataHandler pdh, Envelope envelope, Reader reader)
+      throws IOException {
+    switch (envelope) {
+      case SNS:
+        pdh.processSnsInput(reader);
+        break;
+      case SQS:
+        pdh.processSqsInput(reader);
+        break;
+      case KINESIS:
+        pdh.processKinesisInput(reader);
+        break;
+      default:
+        pdh.processInput(reader);
     }
   }
 
+  private void processInput(Config config, String connectionUri, Context context,
+                            InvocationMetrics metrics, InputProcessor processor)
+      throws IOException {
+    ProcessDataHandler.process(connectionUri, config, context.getLogger(), metrics, pdh -> {
+      processor.process(pdh);
+      return null;
+    });
+  }
+
   private String readInputStream(InputStream inputStream) throws IOException {
-    StringBuilder sb = new StringBuilder();
-    byte [] buf = new byte[128];
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    byte [] buf = new byte[8192];
 
-    int readBytes = 0;
+    int readBytes;
     while ((readBytes = inputStream.read(buf)) != -1) {
-      String bufStr = new String(buf,0,readBytes);
-      sb.append(bufStr);
-      if (readBytes < buf.length) {
-        break;
-      }
+      bos.write(buf, 0, readBytes);
     }
-    return sb.toString();
+    return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Processes the input using the ProcessDataHandler.
+   */
+  @FunctionalInterface
+  private interface InputProcessor {
+    void process(ProcessDataHandler pdh) throws IOException;
   }
 }
@@ -0,0 +1,111 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the allocation, garbage collection and heap counters of the JVM. Counters which aren't
+ * supported by the JVM read as 0.
+ *
+ * @author Udo Held
+ */
+final class MemoryTelemetry {
+  private static final com.sun.management.ThreadMXBean THREADS = initThreads();
+
+  private MemoryTelemetry() {
+  }
+
+  private static com.sun.management.ThreadMXBean initThreads() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    com.sun.management.ThreadMXBean allocationThreads = (com.sun.management.ThreadMXBean) threads;
+    if (!allocationThreads.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    if (!allocationThreads.isThreadAllocatedMemoryEnabled()) {
+      allocationThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+    return allocationThreads;
+  }
+
+  /**
+   * Returns the bytes allocated by the current thread since it started.
+   * @return Allocated bytes.
+   */
+  static long getAllocatedBytes() {
+    return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Returns the number of collections of all garbage collectors.
+   * @return Number of collections.
+   */
+  static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  /**
+   * Returns the accumulated collection time of all garbage collectors.
+   * @return Time in milliseconds.
+   */
+  static long getGcTime() {
+    long time = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, collector.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * Resets the peak usage of all heap pools to their current usage.
+   */
+  static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * Returns the sum of the peak usages of all heap pools since they were reset. The pools peak
+   * at different times, hence it's an upper bound of the used heap.
+   * @return Peak heap usage in bytes.
+   */
+  static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
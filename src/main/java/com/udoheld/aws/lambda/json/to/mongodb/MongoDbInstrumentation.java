@@ -0,0 +1,309 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonWriter;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatStartedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import com.mongodb.event.ServerMonitorListener;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the latency of the MongoDB commands per command name and of the server heartbeats
+ * for the whole container. It's registered with every MongoClient, so the statistics survive
+ * closing and recreating the clients. The connections used by an invocation are counted by the
+ * connection ids seen in its commands, the connection pools are read from the MBeans the driver
+ * registers for them. The statistics of an invocation are the difference to a snapshot taken at
+ * its start.
+ *
+ * @author Udo Held
+ */
+public class MongoDbInstrumentation implements CommandListener, ServerMonitorListener {
+  private static final MongoDbInstrumentation INSTANCE = new MongoDbInstrumentation();
+
+  private static final String POOL_MBEANS = "org.mongodb.driver:type=ConnectionPool,*";
+  private static final String HEARTBEAT = "heartbeat";
+
+  private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+  private final LatencyHistogram heartbeats = new LatencyHistogram();
+  // Connections used since the snapshot of the current invocation, null between invocations.
+  private volatile Set<ConnectionId> invocationConnections;
+
+  MongoDbInstrumentation() {
+  }
+
+  /**
+   * Returns the instrumentation of the container.
+   * @return Instrumentation shared by all clients.
+   */
+  public static MongoDbInstrumentation getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Registers the instrumentation with the client options.
+   * @param builder Options of a new client.
+   * @return The builder.
+   */
+  public MongoClientOptions.Builder register(MongoClientOptions.Builder builder) {
+    return builder.addCommandListener(this).addServerMonitorListener(this);
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    Set<ConnectionId> connections = invocationConnections;
+    if (connections != null && event.getConnectionDescription() != null) {
+      connections.add(event.getConnectionDescription().getConnectionId());
+    }
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    commands.computeIfAbsent(event.getCommandName(), x -> new LatencyHistogram())
+        .record(event.getElapsedTime(TimeUnit.NANOSECONDS), false);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    commands.computeIfAbsent(event.getCommandName(), x -> new LatencyHistogram())
+        .record(event.getElapsedTime(TimeUnit.NANOSECONDS), true);
+  }
+
+  @Override
+  public void serverHearbeatStarted(ServerHeartbeatStartedEvent event) {
+  }
+
+  @Override
+  public void serverHeartbeatSucceeded(ServerHeartbeatSucceededEvent event) {
+    heartbeats.record(event.getElapsedTime(TimeUnit.NANOSECONDS), false);
+  }
+
+  @Override
+  public void serverHeartbeatFailed(ServerHeartbeatFailedEvent event) {
+    heartbeats.record(event.getElapsedTime(TimeUnit.NANOSECONDS), true);
+  }
+
+  /**
+   * Copies the current statistics and starts collecting the connections used by the invocation.
+   * @return Statistics of the container so far.
+   */
+  public Snapshot snapshot() {
+    Snapshot snapshot = copy(ConcurrentHashMap.newKeySet());
+    invocationConnections = snapshot.connections;
+    return snapshot;
+  }
+
+  private Snapshot copy(Set<ConnectionId> connections) {
+    Map<String, long[]> histograms = new TreeMap<>();
+    commands.forEach((name, histogram) -> histograms.put(name, histogram.toArray()));
+    return new Snapshot(histograms, heartbeats.toArray(), connections);
+  }
+
+  /**
+   * Adds the statistics since the start of the invocation to its metrics and stops collecting
+   * its connections. The counts of the commands and of the connections used become metrics,
+   * the histograms of the invocation and of the whole container are added as properties.
+   * @param metrics Metrics of the invocation.
+   * @param start Snapshot taken at the start of the invocation.
+   */
+  public void report(InvocationMetrics metrics, Snapshot start) {
+    if (invocationConnections == start.connections) {
+      invocationConnections = null;
+    }
+    if (!metrics.isEnabled()) {
+      return;
+    }
+    Snapshot current = copy(Collections.emptySet());
+    for (Map.Entry<String, long[]> command : current.commands.entrySet()) {
+      long[] previous = start.commands.get(command.getKey());
+      metrics.add(InvocationMetrics.Count.MONGODB_COMMANDS,
+          LatencyHistogram.count(command.getValue()) - LatencyHistogram.count(previous));
+      metrics.add(InvocationMetrics.Count.MONGODB_FAILED_COMMANDS,
+          LatencyHistogram.failed(command.getValue()) - LatencyHistogram.failed(previous));
+    }
+    metrics.add(InvocationMetrics.Count.MONGODB_CONNECTIONS_USED, start.connections.size());
+
+    int[] pools = readConnectionPools();
+    metrics.add(InvocationMetrics.Count.MONGODB_CONNECTION_POOLS, pools[0]);
+    metrics.add(InvocationMetrics.Count.MONGODB_POOLED_CONNECTIONS, pools[1]);
+
+    metrics.addProperty("MongoDbInvocation", writer -> current.write(writer, start));
+    metrics.addProperty("MongoDbContainer", writer -> {
+      writer.beginObject();
+      writer.name("connectionPools").value(pools[0]);
+      writer.name("pooledConnections").value(pools[1]);
+      writer.name("checkedOutConnections").value(pools[2]);
+      writer.name("latency");
+      current.write(writer, null);
+      writer.endObject();
+    });
+  }
+
+  /**
+   * Sums up the pools of all clients.
+   * @return Number of pools, their connections and their checked out connections.
+   */
+  static int[] readConnectionPools() {
+    int[] pools = new int[3];
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (ObjectName pool : server.queryNames(new ObjectName(POOL_MBEANS), null)) {
+        pools[0]++;
+        pools[1] += (Integer) server.getAttribute(pool, "Size");
+        pools[2] += (Integer) server.getAttribute(pool, "CheckedOutCount");
+      }
+    } catch (JMException | RuntimeException e) {
+      // The pools are only informational, e.g. closed concurrently.
+    }
+    return pools;
+  }
+
+  /**
+   * Statistics at a point of time.
+   */
+  public static final class Snapshot {
+    private final Map<String, long[]> commands;
+    private final long[] heartbeats;
+    private final Set<ConnectionId> connections;
+
+    private Snapshot(Map<String, long[]> commands, long[] heartbeats,
+                     Set<ConnectionId> connections) {
+      this.commands = commands;
+      this.heartbeats = heartbeats;
+      this.connections = connections;
+    }
+
+    /**
+     * Writes the histograms of the commands and heartbeats.
+     * @param writer Target.
+     * @param start Statistics to be subtracted or null.
+     */
+    private void write(JsonWriter writer, Snapshot start) throws IOException {
+      writer.beginObject();
+      for (Map.Entry<String, long[]> command : commands.entrySet()) {
+        long[] previous = start == null ? null : start.commands.get(command.getKey());
+        if (LatencyHistogram.count(command.getValue()) > LatencyHistogram.count(previous)) {
+          writer.name(command.getKey());
+          LatencyHistogram.write(writer, command.getValue(), previous);
+        }
+      }
+      long[] previous = start == null ? null : start.heartbeats;
+      if (LatencyHistogram.count(heartbeats) > LatencyHistogram.count(previous)) {
+        writer.name(HEARTBEAT);
+        LatencyHistogram.write(writer, heartbeats, previous);
+      }
+      writer.endObject();
+    }
+  }
+
+  /**
+   * Counts latencies within buckets growing roughly exponentially.
+   */
+  static final class LatencyHistogram {
+    static final long[] BUCKET_LIMITS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000,
+        5000};
+
+    // Buckets including the one for larger latencies, failures and the total time.
+    private static final int FAILED = BUCKET_LIMITS_MILLIS.length + 1;
+    private static final int TOTAL_NANOS = FAILED + 1;
+
+    private final LongAdder[] values = new LongAdder[TOTAL_NANOS + 1];
+
+    LatencyHistogram() {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos, boolean failed) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int bucket = 0;
+      while (bucket < BUCKET_LIMITS_MILLIS.length && millis >= BUCKET_LIMITS_MILLIS[bucket]) {
+        bucket++;
+      }
+      values[bucket].increment();
+      if (failed) {
+        values[FAILED].increment();
+      }
+      values[TOTAL_NANOS].add(nanos);
+    }
+
+    long[] toArray() {
+      long[] array = new long[values.length];
+      for (int i = 0; i < values.length; i++) {
+        array[i] = values[i].sum();
+      }
+      return array;
+    }
+
+    static long count(long[] histogram) {
+      long count = 0;
+      for (int i = 0; histogram != null && i < FAILED; i++) {
+        count += histogram[i];
+      }
+      return count;
+    }
+
+    static long failed(long[] histogram) {
+      return histogram == null ? 0 : histogram[FAILED];
+    }
+
+    /**
+     * Writes the count, failures, total time and the non-empty buckets keyed by their upper
+     * limit in milliseconds.
+     */
+    static void write(JsonWriter writer, long[] histogram, long[] start) throws IOException {
+      writer.beginObject();
+      writer.name("count").value(count(histogram) - count(start));
+      writer.name("failed").value(failed(histogram) - failed(start));
+      writer.name("totalMs").value((histogram[TOTAL_NANOS] - (start == null ? 0
+          : start[TOTAL_NANOS])) / 1000000.0);
+      writer.name("buckets").beginObject();
+      for (int i = 0; i < FAILED; i++) {
+        long count = histogram[i] - (start == null ? 0 : start[i]);
+        if (count > 0) {
+          writer.name(i < BUCKET_LIMITS_MILLIS.length ? "<" + BUCKET_LIMITS_MILLIS[i]
+              : ">=" + BUCKET_LIMITS_MILLIS[BUCKET_LIMITS_MILLIS.length - 1]).value(count);
+        }
+      }
+      writer.endObject();
+      writer.endObject();
+    }
+  }
+}
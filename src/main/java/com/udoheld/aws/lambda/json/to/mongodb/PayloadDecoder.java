@@ -0,0 +1,173 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes compressed and binary payloads. Gzip and zlib wrapped deflate streams are detected by
+ * their header and decompressed while reading them. Binary payloads passed as text within an
+ * envelope are base64 encoded.
+ *
+ * @author Udo Held
+ */
+public class PayloadDecoder {
+  private static final int GZIP_MAGIC_1 = 0x1f;
+  private static final int GZIP_MAGIC_2 = 0x8b;
+  private static final int ZLIB_DEFLATE = 8;
+  private static final int ZLIB_CHECK = 31;
+  private static final int ZLIB_MAX_WINDOW = 7;
+  private static final int ZLIB_PRESET_DICTIONARY = 0x20;
+  // Valid base64, but rather JSON.
+  private static final List<String> JSON_LITERALS = Arrays.asList("null", "true", "false");
+
+  /**
+   * Decompresses the input, if it starts with a gzip or zlib header.
+   * @param input Input supporting mark and reset.
+   * @param maxBytes Maximum size of the decompressed input, 0 for no limit. Reading beyond it
+   *                 fails with an IOException.
+   * @return Decompressing stream or the unchanged input.
+   * @throws IOException if the input can't be read.
+   */
+  public static InputStream decompress(InputStream input, int maxBytes) throws IOException {
+    input.mark(2);
+    int first = input.read();
+    int second = input.read();
+    input.reset();
+
+    if (first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2) {
+      return limit(new GZIPInputStream(input), maxBytes);
+    }
+    if (isZlibHeader(first, second)) {
+      return limit(new InflaterInputStream(input), maxBytes);
+    }
+    return input;
+  }
+
+  private static InputStream limit(InputStream decompressed, int maxBytes) {
+    return maxBytes > 0 ? new LimitedInputStream(decompressed, maxBytes) : decompressed;
+  }
+
+  /**
+   * Checks if the input is CBOR without consuming it.
+   * @param input Input supporting mark and reset.
+   * @return true, if the input starts with a CBOR array, map or tag.
+   * @throws IOException if the input can't be read.
+   */
+  public static boolean isCbor(InputStream input) throws IOException {
+    input.mark(1);
+    int first = input.read();
+    input.reset();
+    return CborInputParser.isCbor(first);
+  }
+
+  /**
+   * Decodes a binary payload passed as text. Whitespace like line breaks is ignored, any other
+   * character outside of the base64 alphabet means the payload isn't base64 encoded.
+   * @param payload Text payload.
+   * @return Base64 decoded payload or null, if the payload is JSON or not base64 encoded.
+   */
+  public static byte[] decodeBase64(String payload) {
+    int start = 0;
+    while (start < payload.length() && Character.isWhitespace(payload.charAt(start))) {
+      start++;
+    }
+    if (start == payload.length() || payload.charAt(start) == '{'
+        || payload.charAt(start) == '[' || payload.charAt(start) == '"'
+        || JSON_LITERALS.contains(payload.trim())) {
+      return null;
+    }
+
+    StringBuilder encoded = new StringBuilder(payload.length() - start);
+    for (int i = start; i < payload.length(); i++) {
+      if (!Character.isWhitespace(payload.charAt(i))) {
+        encoded.append(payload.charAt(i));
+      }
+    }
+
+    try {
+      return Base64.getDecoder().decode(encoded.toString());
+    } catch (IllegalArgumentException notBase64) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks the zlib header of RFC 1950. Besides the checksum the window size and the missing
+   * preset dictionary are checked, as CBOR arrays like {@code 0x98 0x18} pass the checksum.
+   */
+  private static boolean isZlibHeader(int first, int second) {
+    return first != -1 && second != -1 && (first & 0x0f) == ZLIB_DEFLATE
+        && (first >> 4) <= ZLIB_MAX_WINDOW && (second & ZLIB_PRESET_DICTIONARY) == 0
+        && ((first << 8) | second) % ZLIB_CHECK == 0;
+  }
+
+  /**
+   * Fails reading once more than the maximum number of bytes have been read, so a small
+   * compressed payload can't expand without bounds.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    private final int maxBytes;
+    private long readBytes;
+
+    LimitedInputStream(InputStream input, int maxBytes) {
+      super(input);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int value = super.read();
+      if (value != -1) {
+        count(1);
+      }
+      return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+      long skipped = super.skip(length);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long bytes) throws IOException {
+      readBytes += bytes;
+      if (readBytes > maxBytes) {
+        throw new IOException("The decompressed payload exceeds " + maxBytes + " bytes.");
+      }
+    }
+  }
+}
@@ -20,28 +20,72 @@ package com.udoheld.aws.lambda.json.to.mongodb;
 
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.mongodb.DuplicateKeyException;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Count;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Phase;
+import com.udoheld.aws.lambda.json.to.mongodb.StreamingInputParser.MeasurementConsumer;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.DocumentLayout;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.WriteMode;
+import com.udoheld.aws.lambda.json.to.mongodb.model.DailySensorData;
 import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
 import com.udoheld.iot.json.InputParser;
-import com.udoheld.iot.json.api.DataHolder;
 import com.udoheld.iot.json.api.SensorData;
+import org.bson.BsonDocument;
 import org.mongodb.morphia.AdvancedDatastore;
 import org.mongodb.morphia.Morphia;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.OptionalDouble;
-import java.util.function.BiConsumer;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -51,35 +95,82 @@ import java.util.stream.Stream;
  */
 public class ProcessDataHandler implements Closeable {
 
-  public static final int MAX_WRITE_ATTEMPTS = 10;
+  private static final int GROUPING_TASKS_PER_THREAD = 4;
 
   private static MongoClient globalMongoClient;
+  private static ProcessDataHandler sharedProcessDataHandler;
+  private static String sharedConnectionUri;
+  private static Config sharedConfig;
   private MongoClient localMongoClient;
   private InputParser inputParser = new InputParser();
+  private final StreamingInputParser streamingInputParser = new StreamingInputParser();
+  private final CborInputParser cborInputParser = new CborInputParser();
   private Morphia mongoMorphia;
   private AdvancedDatastore mongoDatastore;
+  private MongoCollection<BsonDocument> sensorDataCollection;
+  private final SensorDataUpdateEncoder updateEncoder = new SensorDataUpdateEncoder();
   private final boolean createGlobalConnection;
+  private final WriteMode writeMode;
+  private final DocumentLayout documentLayout;
+  private final boolean parallelWrites;
+  private final boolean virtualThreads;
+  private final int parallelGroupingThreshold;
+  private final int maxBufferedDocuments;
+  private final int maxBufferedBytes;
+  private final int maxDecompressedBytes;
+  private final Supplier<RetryPolicy> retryPolicyFactory;
+  // Shared by all writes of an invocation, so the budget limits the retries of the invocation.
+  // Handlers used without process(...) share one for their lifetime.
+  private RetryPolicy retryPolicy;
+  private int writeParallelism;
+  private ExecutorService writeExecutor;
   private LambdaLogger logger;
   private boolean debug;
+  private final int backfillDays;
+  private InvocationMetrics metrics = InvocationMetrics.DISABLED;
+  // Set if MongoDB failed for a record whose failure was collected instead of being thrown.
+  private volatile boolean mongoDbFailed;
+  private IngestLag ingestLag;
+  // Documents written by the invocation, which may be written more than once if buffering is
+  // limited. They only get counted once.
+  private Set<MongoSensorData.Id> writtenDocuments;
 
-  private ProcessDataHandler(String connectionUri, String database,
-                             boolean createGlobalConnection, boolean debug, LambdaLogger logger) {
-    this.createGlobalConnection = createGlobalConnection;
-    init(connectionUri, database, debug, logger);
+  private ProcessDataHandler(String connectionUri, Config config, LambdaLogger logger) {
+    this.createGlobalConnection = config.isMongoDbKeepConnection();
+    this.writeMode = config.getMongoDbWriteMode();
+    this.documentLayout = config.getMongoDbDocumentLayout();
+    this.parallelWrites = config.isMongoDbParallelWrites();
+    this.virtualThreads = config.isMongoDbVirtualThreads();
+    this.parallelGroupingThreshold = config.getParallelGroupingThreshold();
+    this.maxBufferedDocuments = config.getMaxBufferedDocuments();
+    this.maxBufferedBytes = config.getMaxBufferedBytes();
+    this.maxDecompressedBytes = config.getMaxDecompressedBytes();
+    this.backfillDays = config.getMetricsBackfillDays();
+    this.retryPolicyFactory = () -> new ExponentialBackoffRetryPolicy(
+        config.getMongoDbRetryMaxAttempts(), config.getMongoDbRetryBaseDelay(),
+        config.getMongoDbRetryMaxDelay(), config.getMongoDbRetryBudget());
+    this.retryPolicy = retryPolicyFactory.get();
+    init(connectionUri, config.getMongoDbDatabase(), config.isDebug(), logger);
   }
 
   private void init(String connectionUri, String database, boolean debug, LambdaLogger logger) {
     this.debug = debug;
     this.logger = logger;
     MongoClient mongoClient = initConnection(connectionUri);
+    writeParallelism = mongoClient.getMongoClientOptions().getConnectionsPerHost();
 
     mongoMorphia = new Morphia();
+    mongoMorphia.getMapper().getConverters().addConverter(new IsoDateConverter());
     mongoMorphia.map(MongoSensorData.class);
     mongoDatastore = (AdvancedDatastore) mongoMorphia.createDatastore(mongoClient, database);
+    sensorDataCollection = mongoClient.getDatabase(database)
+        .getCollection(mongoDatastore.getCollection(MongoSensorData.class).getName(),
+            BsonDocument.class);
   }
 
   private MongoClient initConnection(String connectionUri) {
-    MongoClientURI uri = new MongoClientURI(connectionUri);
+    MongoClientURI uri = new MongoClientURI(connectionUri,
+        MongoDbInstrumentation.getInstance().register(MongoClientOptions.builder()));
     MongoClient mongoClient;
     if (createGlobalConnection) {
       mongoClient =  initGlobalConnection(uri);
@@ -95,14 +186,16 @@ public class ProcessDataHandler implements Closeable {
    * @param mongoUri mongoDB connection Uri
    * @return MongoDB connection
    */
-  private synchronized MongoClient initGlobalConnection(MongoClientURI mongoUri) {
-    if (globalMongoClient == null) {
-      if (debug) {
-        logger.log("Retrieving new connection.");
+  private MongoClient initGlobalConnection(MongoClientURI mongoUri) {
+    synchronized (ProcessDataHandler.class) {
+      if (globalMongoClient == null) {
+        if (debug) {
+          logger.log("Retrieving new connection.");
+        }
+        globalMongoClient = new MongoClient(mongoUri);
       }
-      globalMongoClient = new MongoClient(mongoUri);
+      return globalMongoClient;
     }
-    return globalMongoClient;
   }
 
   /**
@@ -118,7 +211,157 @@ public class ProcessDataHandler implements Closeable {
   public static ProcessDataHandler getProcessDataHandler(String connectionUri, String database,
                                                          boolean createGlobalConnection,
                                                          boolean debug, LambdaLogger logger) {
-    return new ProcessDataHandler(connectionUri, database, createGlobalConnection, debug, logger);
+    Config config = new Config();
+    config.setMongoDbDatabase(database);
+    config.setMongoDbKeepConnection(createGlobalConnection);
+    config.setDebug(debug);
+    return new ProcessDataHandler(connectionUri, config, logger);
+  }
+
+  /**
+   * Initiates the ProcessHandler for input processing based on the runtime configuration.
+   * @param connectionUri connectionUri
+   * @param config Configuration providing the database, connection and write settings.
+   * @param logger Logger
+   * @return ProcessDataHandler.
+   */
+  public static ProcessDataHandler getProcessDataHandler(String connectionUri, Config config,
+                                                         LambdaLogger logger) {
+    return new ProcessDataHandler(connectionUri, config, logger);
+  }
+
+  /**
+   * Returns the ProcessHandler shared by all invocations of the container. The handler, including
+   * its Morphia mapping and datastore, is only initialized on the first call and whenever the
+   * configuration changed. The shared handler keeps its connection and must not be closed by the
+   * caller. Use {@link #discardSharedProcessDataHandler} if the connection failed.
+   * @param connectionUri connectionUri
+   * @param config Configuration providing the database, connection and write settings.
+   * @param logger Logger of the current invocation.
+   * @return Shared ProcessDataHandler.
+   */
+  public static synchronized ProcessDataHandler getSharedProcessDataHandler(String connectionUri,
+                                                                            Config config,
+                                                                            LambdaLogger logger) {
+    if (sharedProcessDataHandler != null && connectionUri.equals(sharedConnectionUri)
+        && config.equals(sharedConfig)) {
+      sharedProcessDataHandler.logger = logger;
+      if (sharedProcessDataHandler.debug) {
+        logger.log("Reusing initialized handler.");
+      }
+      return sharedProcessDataHandler;
+    }
+    discardSharedProcessDataHandler();
+
+    sharedProcessDataHandler = new ProcessDataHandler(connectionUri, config, logger);
+    sharedConnectionUri = connectionUri;
+    sharedConfig = config;
+    return sharedProcessDataHandler;
+  }
+
+  /**
+   * Closes the shared ProcessHandler and its connection. The next call of
+   * {@link #getSharedProcessDataHandler} initializes a new one.
+   */
+  public static synchronized void discardSharedProcessDataHandler() {
+    if (sharedProcessDataHandler != null) {
+      final ProcessDataHandler handler = sharedProcessDataHandler;
+      sharedProcessDataHandler = null;
+      sharedConnectionUri = null;
+      sharedConfig = null;
+      handler.close();
+    }
+  }
+
+  /**
+   * Runs the processor with a ProcessDataHandler for the configuration. If the connection is
+   * kept, the shared handler is used and discarded if MongoDB fails, even if only single records
+   * of a batch failed. Otherwise a new handler is created and closed afterwards.
+   * @param connectionUri connectionUri
+   * @param config Configuration providing the database, connection and write settings.
+   * @param logger Logger of the current invocation.
+   * @param processor Processes the input using the handler.
+   * @param <T> Result of the processor.
+   * @return The result of the processor.
+   * @throws IOException if the processor fails reading the input.
+   */
+  public static <T> T process(String connectionUri, Config config, LambdaLogger logger,
+                              Processor<T> processor) throws IOException {
+    return process(connectionUri, config, logger, InvocationMetrics.DISABLED, processor);
+  }
+
+  /**
+   * Runs the processor with a ProcessDataHandler for the configuration and collects the metrics
+   * of the processing.
+   * @param connectionUri connectionUri
+   * @param config Configuration providing the database, connection and write settings.
+   * @param logger Logger of the current invocation.
+   * @param metrics Metrics of the current invocation.
+   * @param processor Processes the input using the handler.
+   * @param <T> Result of the processor.
+   * @return The result of the processor.
+   * @throws IOException if the processor fails reading the input.
+   * @see #process(String, Config, LambdaLogger, Processor)
+   */
+  public static <T> T process(String connectionUri, Config config, LambdaLogger logger,
+                              InvocationMetrics metrics, Processor<T> processor)
+      throws IOException {
+    if (config.isMongoDbKeepConnection()) {
+      ProcessDataHandler pdh = getSharedProcessDataHandler(connectionUri, config, logger);
+      try {
+        T result = pdh.processWithMetrics(metrics, processor);
+        if (pdh.mongoDbFailed) {
+          discardSharedProcessDataHandler();
+        }
+        return result;
+      } catch (MongoException e) {
+        discardSharedProcessDataHandler();
+        throw e;
+      }
+    } else {
+      try (ProcessDataHandler pdh = getProcessDataHandler(connectionUri, config, logger)) {
+        return pdh.processWithMetrics(metrics, processor);
+      }
+    }
+  }
+
+  private <T> T processWithMetrics(InvocationMetrics metrics, Processor<T> processor)
+      throws IOException {
+    this.metrics = metrics;
+    mongoDbFailed = false;
+    writtenDocuments = metrics.isEnabled() ? ConcurrentHashMap.newKeySet() : null;
+    RetryPolicy invocationRetryPolicy = retryPolicyFactory.get();
+    retryPolicy = invocationRetryPolicy;
+    MongoDbInstrumentation.Snapshot snapshot = null;
+    if (metrics.isLogged()) {
+      snapshot = MongoDbInstrumentation.getInstance().snapshot();
+      ingestLag = new IngestLag(System.currentTimeMillis(), backfillDays);
+    }
+    try {
+      return processor.process(this);
+    } finally {
+      this.metrics = InvocationMetrics.DISABLED;
+      writtenDocuments = null;
+      metrics.add(Count.RETRIES, invocationRetryPolicy.getRetryCount());
+      if (invocationRetryPolicy.getRetryCount() > 0) {
+        logger.log("Retried " + invocationRetryPolicy.getRetryCount() + " write(s) due to"
+            + " concurrent modifications.");
+      }
+      if (snapshot != null) {
+        MongoDbInstrumentation.getInstance().report(metrics, snapshot);
+        reportIngestLag(metrics);
+      }
+    }
+  }
+
+  private void reportIngestLag(InvocationMetrics metrics) {
+    IngestLag lag = ingestLag;
+    ingestLag = null;
+    lag.report(metrics);
+    if (lag.getBackfillDocuments() > 0) {
+      logger.log("Backfilled " + lag.getBackfillDocuments() + " document(s) before "
+          + lag.getBackfillDate() + ".");
+    }
   }
 
   /**
@@ -126,149 +369,713 @@ public class ProcessDataHandler implements Closeable {
    * @param input JSON in limited SenML format.
    */
   public void processInput(String input) {
+    InvocationMetrics.Timer parseTimer = metrics.start(Phase.PARSE);
     SensorData [] sensorData = inputParser.parseInput(input);
+    parseTimer.stop();
 
     if (debug) {
       logger.log("Found " + sensorData.length + " record(s.)");
     }
 
     // device, type, date
-    Map<String, Map<String, Map<LocalDate, MongoSensorData>>> sensorHolder = new HashMap<>();
-    mergeSensorData(sensorData,sensorHolder);
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder;
+    InvocationMetrics.Timer groupingTimer = metrics.start(Phase.GROUPING);
+    if (!isBounded() && parallelGroupingThreshold > 0
+        && input.length() >= parallelGroupingThreshold) {
+      sensorHolder = ForkJoinPool.commonPool().invoke(new GroupingTask(sensorData, 0,
+          sensorData.length, Math.max(1, sensorData.length
+          / (ForkJoinPool.getCommonPoolParallelism() * GROUPING_TASKS_PER_THREAD))));
+    } else {
+      sensorHolder = new HashMap<>();
+      mergeSensorData(sensorData, 0, sensorData.length, boundedGrouping(sensorHolder));
+    }
+    groupingTimer.stop();
+    writeSensorData(sensorHolder);
+  }
+
+  /**
+   * Processes the input message while reading it and stores it into the MongoDB database. Every
+   * measurement gets merged into its document as soon as it has been parsed, so only the
+   * documents are kept in memory but neither the input nor the parsed records.
+   * @param input UTF-8 encoded JSON in limited SenML format or SenML encoded as CBOR. The input
+   *              may be gzip or zlib compressed. The stream isn't closed.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   */
+  public void processInput(InputStream input) throws IOException {
+    // device, type, date
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
+    InvocationMetrics.Timer parseTimer = metrics.start(Phase.PARSE);
+    int records = parseBinary(input, timed(boundedGrouping(sensorHolder)));
+    parseTimer.stop();
+
+    if (debug) {
+      logger.log("Found " + records + " record(s.)");
+    }
+    writeSensorData(sensorHolder);
+  }
+
+  /**
+   * Processes the input message while reading it and stores it into the MongoDB database.
+   * @param input JSON in limited SenML format. The reader isn't closed.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   * @see #processInput(InputStream)
+   */
+  public void processInput(Reader input) throws IOException {
+    // device, type, date
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
+    InvocationMetrics.Timer parseTimer = metrics.start(Phase.PARSE);
+    int records = parseInput(input, timed(boundedGrouping(sensorHolder)));
+    parseTimer.stop();
+
+    if (debug) {
+      logger.log("Found " + records + " record(s.)");
+    }
+    writeSensorData(sensorHolder);
+  }
+
+  /**
+   * Processes the messages of all records of a SNS notification and stores them into the MongoDB
+   * database. The envelope is read while processing it, the measurements of all messages get
+   * merged and written together. The messages may be base64 encoded and compressed.
+   * @param input JSON including the SNS header. The reader isn't closed.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   */
+  public void processSnsInput(Reader input) throws IOException {
+    processMessages("SNS", grouping -> SnsMessageExtractor.extractSnsMessages(input,
+        message -> parseText(message, grouping)));
+  }
+
+  /**
+   * Processes the bodies of all records of a SQS event and stores them into the MongoDB database.
+   * @param input SQS event. The reader isn't closed.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   * @see #processSnsInput(Reader)
+   */
+  public void processSqsInput(Reader input) throws IOException {
+    processMessages("SQS", grouping -> EventRecordExtractor.extractSqsRecords(input,
+        (id, body) -> parseText(body, grouping)));
+  }
+
+  /**
+   * Processes the data of all records of a Kinesis event and stores them into the MongoDB
+   * database.
+   * @param input Kinesis event. The reader isn't closed.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   * @see #processSnsInput(Reader)
+   */
+  public void processKinesisInput(Reader input) throws IOException {
+    processMessages("Kinesis", grouping -> EventRecordExtractor.extractKinesisRecords(input,
+        (id, data) -> parseKinesisData(data, grouping)));
+  }
+
+  /**
+   * Processes all records of a SQS event as a batch. The measurements of all records get merged
+   * and written together. Records which can't be parsed, or whose measurements belong to a
+   * document which couldn't be written, are reported as failed.
+   * @param input SQS event. The reader isn't closed.
+   * @return Message ids of the failed records.
+   * @throws IOException if the event can't be read or isn't valid JSON.
+   */
+  public List<String> processSqsBatch(Reader input) throws IOException {
+    return processBatch("SQS", consumer -> EventRecordExtractor.extractSqsRecords(input,
+        (id, body) -> consumer.accept(id, grouping -> parseText(body, grouping))));
+  }
+
+  /**
+   * Processes all records of a Kinesis event as a batch.
+   * @param input Kinesis event. The reader isn't closed.
+   * @return Sequence numbers of the failed records.
+   * @throws IOException if the event can't be read or isn't valid JSON.
+   * @see #processSqsBatch(Reader)
+   */
+  public List<String> processKinesisBatch(Reader input) throws IOException {
+    return processBatch("Kinesis", consumer -> EventRecordExtractor.extractKinesisRecords(input,
+        (id, data) -> consumer.accept(id, grouping -> parseKinesisData(data, grouping))));
+  }
+
+  private List<String> processBatch(String source, BatchExtractor extractor) throws IOException {
+    // device, type, date
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
+    Map<DailySensorData, Set<String>> recordIds = new IdentityHashMap<>();
+    Set<String> failedIds = new LinkedHashSet<>();
+    List<DailySensorData> failedRecords = new ArrayList<>();
+    Consumer<List<DailySensorData>> writer = batchRecords -> {
+      writeSensorData(batchRecords.stream(), failedRecords);
+      failedRecords.forEach(x -> recordIds.get(x).forEach(id -> addFailedId(failedIds, id)));
+      failedRecords.clear();
+      batchRecords.forEach(recordIds::remove);
+    };
+    DocumentFlusher flusher = isBounded() ? new DocumentFlusher(sensorHolder, writer) : null;
+
+    InvocationMetrics.Timer extractionTimer = metrics.start(Phase.EXTRACTION);
+    int records = extractor.extract((id, parser) -> {
+      // Every record is parsed on its own first, so invalid records don't leave any traces.
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> recordHolder = new HashMap<>();
+      try {
+        parser.extract(timed(grouping(recordHolder)));
+      } catch (IOException | RuntimeException e) {
+        logger.log("Unable to parse " + source + " record " + id + ". " + e.getMessage());
+        addFailedId(failedIds, id);
+        return;
+      }
+      InvocationMetrics.Timer groupingTimer = metrics.start(Phase.GROUPING);
+      mergeSensorHolder(recordHolder, sensorHolder, batchData -> {
+        recordIds.computeIfAbsent(batchData, x -> new LinkedHashSet<>()).add(id);
+        if (flusher != null) {
+          flusher.touch(batchData);
+        }
+      });
+      groupingTimer.stop();
+    });
+    extractionTimer.stop();
+    metrics.add(Count.RECORDS, records);
+
+    if (debug) {
+      logger.log("Found " + records + " " + source + " record(s).");
+    }
+    writer.accept(new ArrayList<>(recordIds.keySet()));
+    metrics.add(Count.FAILED_RECORDS, failedIds.size());
+    return new ArrayList<>(failedIds);
+  }
+
+  private void addFailedId(Set<String> failedIds, String id) {
+    if (id == null) {
+      throw new IllegalStateException("Unable to report a failed record without an id.");
+    }
+    failedIds.add(id);
+  }
+
+  private void processMessages(String source, MessageExtractor extractor) throws IOException {
+    // device, type, date
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
+    InvocationMetrics.Timer extractionTimer = metrics.start(Phase.EXTRACTION);
+    int messages = extractor.extract(timed(boundedGrouping(sensorHolder)));
+    extractionTimer.stop();
+    metrics.add(Count.RECORDS, messages);
+
+    if (debug) {
+      logger.log("Found " + messages + " " + source + " message(s).");
+    }
+    writeSensorData(sensorHolder);
+  }
+
+  /**
+   * Parses a message passed as text. It is either JSON or a base64 encoded binary payload.
+   */
+  private int parseText(String message, MeasurementConsumer grouping) throws IOException {
+    InvocationMetrics.Timer parseTimer = metrics.start(Phase.PARSE);
+    try {
+      byte[] binary = PayloadDecoder.decodeBase64(message);
+      if (binary == null) {
+        return parseInput(new StringReader(message), grouping);
+      }
+      return parseBinary(new ByteArrayInputStream(binary), grouping);
+    } finally {
+      parseTimer.stop();
+    }
+  }
+
+  /**
+   * Parses the base64 encoded data of a Kinesis record. Records aggregated by the Kinesis
+   * Producer Library get unpacked and each user record is parsed on its own.
+   */
+  private int parseKinesisData(String data, MeasurementConsumer grouping) throws IOException {
+    InvocationMetrics.Timer parseTimer = metrics.start(Phase.PARSE);
+    try {
+      int[] records = new int[1];
+      KplDeaggregator.deaggregate(Base64.getMimeDecoder().decode(data),
+          (buffer, offset, length) -> records[0] += parseBinary(
+              new ByteArrayInputStream(buffer, offset, length), grouping));
+      return records[0];
+    } finally {
+      parseTimer.stop();
+    }
+  }
+
+  /**
+   * Parses a binary payload. It may be compressed and is either UTF-8 encoded JSON or CBOR.
+   */
+  private int parseBinary(InputStream input, MeasurementConsumer grouping) throws IOException {
+    InputStream decompressed = new BufferedInputStream(PayloadDecoder.decompress(
+        new BufferedInputStream(input), maxDecompressedBytes));
+    if (PayloadDecoder.isCbor(decompressed)) {
+      return cborInputParser.parse(decompressed, grouping);
+    }
+    return parseInput(new InputStreamReader(decompressed, StandardCharsets.UTF_8), grouping);
+  }
+
+  private int parseInput(Reader input, MeasurementConsumer grouping) throws IOException {
+    return streamingInputParser.parse(input, grouping);
+  }
+
+  /**
+   * Creates a consumer merging the measurements into the documents of the holder.
+   */
+  private MeasurementConsumer grouping(
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder) {
+    return (device, type, timestamp, value) ->
+        mergeMeasurement(device, type, timestamp, value, sensorHolder);
+  }
+
+  /**
+   * Creates a consumer merging the measurements into the documents of the holder. If the number
+   * or size of the buffered documents is limited, documents get written as soon as the holder
+   * exceeds the limits.
+   */
+  private MeasurementConsumer boundedGrouping(
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder) {
+    if (!isBounded()) {
+      return grouping(sensorHolder);
+    }
+    DocumentFlusher flusher = new DocumentFlusher(sensorHolder,
+        records -> writeSensorData(records.stream(), null));
+    return (device, type, timestamp, value) ->
+        flusher.touch(mergeMeasurement(device, type, timestamp, value, sensorHolder));
+  }
+
+  /**
+   * Times the grouping of every measurement, if the metrics get logged. Metrics only collected
+   * for the invocation result don't pay for timing every measurement.
+   */
+  private MeasurementConsumer timed(MeasurementConsumer grouping) {
+    if (!metrics.isLogged()) {
+      return grouping;
+    }
+    return (device, type, timestamp, value) -> {
+      InvocationMetrics.Timer groupingTimer = metrics.startTiming(Phase.GROUPING);
+      grouping.accept(device, type, timestamp, value);
+      groupingTimer.stop();
+    };
+  }
+
+  private boolean isBounded() {
+    return maxBufferedDocuments > 0 || maxBufferedBytes > 0;
+  }
+
+  private void writeSensorData(
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder) {
+    writeSensorData(sensorHolder.values().stream()
+        .flatMap(x -> x.values().stream())
+        .flatMap(x -> x.values().stream()), null);
+  }
+
+  /**
+   * Writes all records.
+   * @param failedRecords Collects the records which couldn't be written. If null, the first
+   *                      failure is thrown instead.
+   */
+  private void writeSensorData(Stream<DailySensorData> records,
+                               List<DailySensorData> failedRecords) {
     if (debug) {
       logger.log("Writing records.");
     }
-    storeSensorData(sensorHolder);
+    storeSensorData(records, failedRecords);
   }
 
-  private void storeSensorData(
-      Map<String, Map<String, Map<LocalDate, MongoSensorData>>> sensorHolder) {
-    sensorHolder.entrySet()
-        .stream()
-        .flatMap(x -> x.getValue().entrySet().stream())
-        .flatMap(x -> x.getValue().entrySet().stream())
-        .forEach(x -> storeRecord(x.getValue()));
+  private void storeSensorData(Stream<DailySensorData> records,
+                               List<DailySensorData> failedRecords) {
+    if (metrics.isEnabled()) {
+      IngestLag lag = ingestLag;
+      Set<MongoSensorData.Id> written = writtenDocuments;
+      records = records.peek(x -> {
+        if (written.add(x.getId())) {
+          metrics.increment(Count.DOCUMENTS);
+          if (lag != null) {
+            lag.recordDocument(x.getId().getDate());
+          }
+        }
+      });
+    }
+    // Packed documents can't be updated partially, hence they always get merged.
+    boolean upsert = writeMode != WriteMode.MERGE && documentLayout == DocumentLayout.NESTED;
+    if (upsert && writeMode == WriteMode.BULK) {
+      storeRecords(records.collect(Collectors.toList()), failedRecords);
+    } else if (parallelWrites) {
+      storeRecordsConcurrently(records, upsert, failedRecords);
+    } else {
+      records.forEach(x -> storeRecord(x, upsert, failedRecords));
+    }
   }
 
-  private void storeRecord(MongoSensorData mongoSensorData) {
-    int writeAttempts = 0;
+  /**
+   * Writes the records concurrently. Every record belongs to a different document, hence the
+   * writes are independent. At most as many records as the connection pool allows are written at
+   * the same time.
+   * @param records Records to be written.
+   * @param upsert Attempts an upsert first.
+   * @param failedRecords Collects the records which couldn't be written, if not null.
+   */
+  private void storeRecordsConcurrently(Stream<DailySensorData> records, boolean upsert,
+                                        List<DailySensorData> failedRecords) {
+    ExecutorService executor = getWriteExecutor();
+    Semaphore writePermits = new Semaphore(writeParallelism);
+
+    List<Future<?>> writes = records
+        .map(x -> executor.submit(() -> {
+          writePermits.acquireUninterruptibly();
+          try {
+            storeRecord(x, upsert, failedRecords);
+          } finally {
+            writePermits.release();
+          }
+        }))
+        .collect(Collectors.toList());
+
+    RuntimeException failure = null;
+    for (Future<?> write : writes) {
+      try {
+        write.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+              : new IllegalStateException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while writing records.", e);
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private synchronized ExecutorService getWriteExecutor() {
+    if (writeExecutor == null) {
+      if (virtualThreads) {
+        writeExecutor = createVirtualThreadExecutor();
+      }
+      if (writeExecutor == null) {
+        AtomicInteger threadCount = new AtomicInteger();
+        writeExecutor = Executors.newFixedThreadPool(writeParallelism, runnable -> {
+          Thread thread = new Thread(runnable, "sensor-data-writer-"
+              + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      if (debug) {
+        logger.log("Writing up to " + writeParallelism + " records concurrently.");
+      }
+    }
+    return writeExecutor;
+  }
+
+  /**
+   * Creates an executor starting a virtual thread per task. Virtual threads are only available
+   * on Java 21 and later.
+   * @return The executor or null, if the JVM doesn't support virtual threads.
+   */
+  private ExecutorService createVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.log("Virtual threads aren't supported by this JVM. Using platform threads instead.");
+      return null;
+    }
+  }
+
+  /**
+   * Writes a single record. If the record can't be written, it's either added to the failed
+   * records or the failure is thrown.
+   */
+  private void storeRecord(DailySensorData sensorData, boolean upsert,
+                           List<DailySensorData> failedRecords) {
+    if (failedRecords == null) {
+      try {
+        storeRecord(sensorData, upsert);
+      } catch (RuntimeException e) {
+        metrics.addFailedDocument(sensorData.getId());
+        throw e;
+      }
+      return;
+    }
+    try {
+      storeRecord(sensorData, upsert);
+    } catch (RuntimeException e) {
+      logger.log("Unable to write record: " + sensorData.getId().getDevice() + " "
+          + sensorData.getId().getType() + " " + sensorData.getId().getDate() + ". "
+          + e.getMessage());
+      if (e instanceof MongoException) {
+        mongoDbFailed = true;
+      }
+      synchronized (failedRecords) {
+        failedRecords.add(sensorData);
+      }
+      metrics.addFailedDocument(sensorData.getId());
+    }
+  }
+
+  /**
+   * Writes a single record.
+   * @param sensorData Record to be written.
+   * @param upsert Attempts an upsert first. If the upsert can't be applied, because the document
+   *               already contains some of the minutes or was created concurrently, the record
+   *               gets merged with the existing document.
+   */
+  private void storeRecord(DailySensorData sensorData, boolean upsert) {
     if (debug) {
-      logger.log("Writing record: " + mongoSensorData.getId().getDevice() + " "
-          + mongoSensorData.getId().getType() + " " + mongoSensorData.getId().getDate());
+      logger.log("Writing record: " + sensorData.getId().getDevice() + " "
+          + sensorData.getId().getType() + " " + sensorData.getId().getDate());
     }
-    boolean writtenRecord = false;
+    // A failed upsert only requires a merge, it doesn't indicate a conflicting writer.
+    boolean writtenRecord = upsert && attemptRecordUpsert(sensorData);
+    int failedAttempts = 0;
 
-    while (writeAttempts++ < MAX_WRITE_ATTEMPTS && ! writtenRecord ) {
-      writtenRecord = attemptRecordWrite(mongoSensorData);
+    while (! writtenRecord) {
+      writtenRecord = attemptRecordWrite(sensorData);
+      if (! writtenRecord) {
+        InvocationMetrics.Timer retryTimer = metrics.start(Phase.RETRY);
+        boolean retry = retryPolicy.retry(++failedAttempts);
+        retryTimer.stop();
+        if (! retry) {
+          break;
+        }
+      }
     }
 
     if (debug) {
-      logger.log("Record written " + writtenRecord + " after " + ( writeAttempts - 1 )
-          + " attempts.");
+      logger.log("Record written " + writtenRecord + " after " + failedAttempts
+          + " failed attempts.");
     }
 
     if (!writtenRecord) {
       throw new ConcurrentModificationException("Unable to write record to database probably due to"
-          + " concurrent modification of the record. Giving up after " + MAX_WRITE_ATTEMPTS
+          + " concurrent modification of the record. Giving up after " + failedAttempts
           + " attempts.");
     }
   }
 
-  private boolean attemptRecordWrite(MongoSensorData mongoSensorData) {
+  private boolean attemptRecordWrite(DailySensorData sensorData) {
+    InvocationMetrics.Timer readTimer = metrics.start(Phase.MONGODB_READ);
     MongoSensorData existingRecord
-        = mongoDatastore.get(mongoSensorData.getClass(), mongoSensorData.getId());
+        = mongoDatastore.get(MongoSensorData.class, sensorData.getId());
+    readTimer.stop();
+
+    InvocationMetrics.Timer mergeTimer = metrics.start(Phase.MERGE);
+    DailySensorData existingData = existingRecord == null ? null
+        : DailySensorData.fromMongoSensorData(existingRecord);
+    if (existingData != null && isMerged(existingRecord)
+        && existingData.containsAll(sensorData)) {
+      mergeTimer.stop();
+      metrics.increment(Count.UNCHANGED_DOCUMENTS);
+      return true;
+    }
+    MongoSensorData mergedRecord = mergeRecords(sensorData, existingRecord, existingData);
+    mergeTimer.stop();
+
+    return writeRecord(mergedRecord, existingRecord == null);
+  }
+
+  /**
+   * Checks if the document was last written by a merge using the configured layout. Merging it
+   * again without new measurements wouldn't change it. Upserted documents lack the average and
+   * documents using another layout need to be converted.
+   */
+  private boolean isMerged(MongoSensorData record) {
+    return record.getSummary() != null && record.getSummary().isAverageStored()
+        && (documentLayout == DocumentLayout.PACKED ? record.getMask() != null
+        : record.getDetailed() != null);
+  }
+
+  /**
+   * Writes all minutes of the record with a single upsert without reading the existing document.
+   * The hourly sum and count of the summary are incremented within the same operation. The
+   * version gets incremented so concurrent writers using {@link WriteMode#MERGE} still detect the
+   * modification.
+   * @param sensorData Record to be written.
+   * @return true, if the record was written. false, if the existing document already contains some
+   *     of the minutes, has no running sum and count yet or was inserted concurrently. The record
+   *     needs to be merged with the existing document instead.
+   */
+  private boolean attemptRecordUpsert(DailySensorData sensorData) {
+    InvocationMetrics.Timer writeTimer = metrics.start(Phase.MONGODB_WRITE);
+    try {
+      UpdateResult result = sensorDataCollection.updateOne(
+          updateEncoder.encodeFilter(sensorData), updateEncoder.encodeUpdate(sensorData),
+          new UpdateOptions().upsert(true));
+      metrics.increment(result.getUpsertedId() != null ? Count.INSERTED_DOCUMENTS
+          : Count.UPDATED_DOCUMENTS);
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+        return false;
+      }
+      throw e;
+    } finally {
+      writeTimer.stop();
+    }
+    return true;
+  }
+
+  /**
+   * Writes all records using a single unordered bulk write of the same upserts as
+   * {@link #attemptRecordUpsert}. Only records which failed get merged with their existing
+   * documents.
+   * @param records Records to be written.
+   * @param failedRecords Collects the records which couldn't be written, if not null.
+   */
+  private void storeRecords(List<DailySensorData> records, List<DailySensorData> failedRecords) {
+    if (records.isEmpty()) {
+      return;
+    }
+    List<DailySensorData> mergeRecords;
     try {
-      MongoSensorData srcRecord = (MongoSensorData) mongoSensorData.clone();
+      mergeRecords = attemptBulkUpsert(records);
+    } catch (RuntimeException e) {
+      if (failedRecords == null) {
+        throw e;
+      }
+      // Writing the records one by one tells which of them failed.
+      logger.log("Bulk write failed, writing records one by one. " + e.getMessage());
+      mergeRecords = records;
+    }
 
-      MongoSensorData mergedRecord = mergeRecords(srcRecord, existingRecord);
+    if (debug) {
+      logger.log("Bulk written " + (records.size() - mergeRecords.size()) + " of "
+          + records.size() + " record(s).");
+    }
 
-      return writeRecord(mergedRecord, existingRecord == null);
+    mergeRecords.forEach(x -> storeRecord(x, false, failedRecords));
+  }
 
-    } catch (CloneNotSupportedException e) {
-      throw new UnsupportedOperationException(e);
+  /**
+   * Sends the upserts for all records within a single unordered bulk write.
+   * @param records Records to be written.
+   * @return The records which couldn't be upserted and need to be merged with the existing
+   *     document. Any other write error is thrown.
+   */
+  private List<DailySensorData> attemptBulkUpsert(List<DailySensorData> records) {
+    List<UpdateOneModel<BsonDocument>> upserts = records.stream()
+        .map(x -> new UpdateOneModel<BsonDocument>(updateEncoder.encodeFilter(x),
+            updateEncoder.encodeUpdate(x), new UpdateOptions().upsert(true)))
+        .collect(Collectors.toList());
+
+    List<DailySensorData> failedRecords = new ArrayList<>();
+    InvocationMetrics.Timer writeTimer = metrics.start(Phase.MONGODB_WRITE);
+    try {
+      BulkWriteResult result = sensorDataCollection.bulkWrite(upserts,
+          new BulkWriteOptions().ordered(false));
+      countBulkWrite(result);
+      if (debug) {
+        logger.log("Bulk write inserted " + result.getUpserts().size() + " and updated "
+            + result.getMatchedCount() + " record(s).");
+      }
+    } catch (MongoBulkWriteException e) {
+      countBulkWrite(e.getWriteResult());
+      for (BulkWriteError error : e.getWriteErrors()) {
+        if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+          throw e;
+        }
+        failedRecords.add(records.get(error.getIndex()));
+      }
+    } finally {
+      writeTimer.stop();
+    }
+    return failedRecords;
+  }
+
+  private void countBulkWrite(BulkWriteResult result) {
+    if (result.wasAcknowledged()) {
+      metrics.add(Count.INSERTED_DOCUMENTS, result.getUpserts().size());
+      metrics.add(Count.UPDATED_DOCUMENTS, result.getMatchedCount());
     }
   }
 
   private boolean writeRecord(MongoSensorData record, boolean newRecord) {
-    if (newRecord) {
-      try {
-        mongoDatastore.insert(record);
-      } catch (DuplicateKeyException e) {
-        return false;
-      }
-    } else {
-      try {
-        mongoDatastore.save(record);
-      } catch (ConcurrentModificationException e) {
-        return false;
+    InvocationMetrics.Timer writeTimer = metrics.start(Phase.MONGODB_WRITE);
+    try {
+      if (newRecord) {
+        try {
+          mongoDatastore.insert(record);
+        } catch (DuplicateKeyException e) {
+          return false;
+        }
+        metrics.increment(Count.INSERTED_DOCUMENTS);
+      } else {
+        try {
+          mongoDatastore.save(record);
+        } catch (ConcurrentModificationException e) {
+          return false;
+        }
+        metrics.increment(Count.UPDATED_DOCUMENTS);
       }
+    } finally {
+      writeTimer.stop();
     }
 
     return true;
   }
 
   /**
-   * Merges two MongoSensorData records. The new srcData will overwrite any existing records.
-   * @param srcData New recorded to be merged.
-   * @param existing Existing record to be updated.
-   * @return Merged record.
-   */
-  private MongoSensorData mergeRecords(MongoSensorData srcData, MongoSensorData existing) {
-
-    final MongoSensorData target = existing == null ? srcData : existing;
-    if (existing != null) {
-      final Map<Integer,Map<Integer,Double>> currentDetail = target.getDetailed();
-      BiFunction<Map<Integer,Double>,Map<Integer,Double>,Map<Integer,Double>> mergeHour =
-          (input,mergeE) -> {
-            input.entrySet()
-                .stream()
-                .forEach(entry -> mergeE.put(entry.getKey(),entry.getValue()));
-            return mergeE;
-          };
-
-      BiConsumer<Integer,Map<Integer,Double>> mergeDetails =
-          (hour,details) -> {
-            if (currentDetail.putIfAbsent(hour,details) != null) {
-              currentDetail.put(hour,mergeHour.apply(details,currentDetail.get(hour)));
-            }
-          };
-
-      srcData.getDetailed()
-          .entrySet()
-          .stream()
-          .forEach(x -> {
-            mergeDetails.accept(x.getKey(),x.getValue());
-          });
-    }
-    calculateSummary(target);
+   * Merges the new measurements into the existing record. The new srcData will overwrite any
+   * existing measurements. The existing record may use any layout, the merged record uses the
+   * configured one.
+   * @param srcData New measurements to be merged.
+   * @param existing Existing record to be updated. May be null.
+   * @return Merged record with a recalculated summary.
+   */
+  private MongoSensorData mergeRecords(DailySensorData srcData, MongoSensorData existing) {
+    return mergeRecords(srcData, existing,
+        existing == null ? null : DailySensorData.fromMongoSensorData(existing));
+  }
+
+  /**
+   * Merges the new measurements into the existing record.
+   * @param existingData Measurements of the existing record, which get modified. May be null.
+   * @see #mergeRecords(DailySensorData, MongoSensorData)
+   */
+  private MongoSensorData mergeRecords(DailySensorData srcData, MongoSensorData existing,
+                                       DailySensorData existingData) {
+    DailySensorData mergedData = srcData;
+    MongoSensorData target = existing;
+    if (existing == null) {
+      target = new MongoSensorData();
+      target.setId(srcData.getId());
+    } else {
+      mergedData = existingData;
+      mergedData.merge(srcData);
+    }
+
+    if (documentLayout == DocumentLayout.PACKED) {
+      target.setDetailed(null);
+      target.setMask(mergedData.toPackedMask());
+      target.setValues(mergedData.toPackedValues());
+    } else {
+      target.setDetailed(mergedData.toDetailed());
+      target.setMask(null);
+      target.setValues(null);
+    }
+    target.setSummary(calculateSummary(mergedData));
     return target;
   }
 
   /**
-   * Recalculates the summary and updates the current summary record.
-   * @param record Record for which the summary needs to be updated.
+   * Calculates the hourly summary of the measurements.
+   * @param sensorData Measurements of the day.
+   * @return Summary of the measurements.
    */
-  private void calculateSummary(MongoSensorData record) {
-    MongoSensorData.Summary summary = new MongoSensorData.Summary();
+  private MongoSensorData.Summary calculateSummary(DailySensorData sensorData) {
     Map<Integer,Double> average = new HashMap<>();
+    Map<Integer,Double> sum = new HashMap<>();
+    Map<Integer,Integer> count = new HashMap<>();
 
-    Function<Map<Integer,Double>,Double> calcAvg = (minuteValues) -> {
-      OptionalDouble optDouble = minuteValues.entrySet()
-          .stream()
-          .mapToDouble(y -> y.getValue())
-          .average();
-      return optDouble.isPresent() ? optDouble.getAsDouble() : null;
-    };
-
-    if (record.getDetailed() != null) {
-      record.getDetailed()
-          .entrySet()
-          .stream()
-          .forEach( x -> average.put(x.getKey(),calcAvg.apply(x.getValue())));
+    for (int hour = 0; hour < DailySensorData.HOURS_PER_DAY; hour++) {
+      int hourCount = sensorData.count(hour);
+      if (hourCount > 0) {
+        double hourSum = sensorData.sum(hour);
+        average.put(hour, hourSum / hourCount);
+        sum.put(hour, hourSum);
+        count.put(hour, hourCount);
+      }
     }
 
+    MongoSensorData.Summary summary = new MongoSensorData.Summary();
     summary.setAverage(average);
-    record.setSummary(summary);
+    summary.setSum(sum);
+    summary.setCount(count);
+    return summary;
   }
 
   /**
@@ -277,69 +1084,98 @@ public class ProcessDataHandler implements Closeable {
    * @param sensorHolder Target structure.
    */
   private void mergeSensorData(SensorData[] sensorData,
-                     Map<String, Map<String, Map<LocalDate, MongoSensorData>>> sensorHolder) {
-    Stream.of(sensorData)
+                     Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder) {
+    mergeSensorData(sensorData, 0, sensorData.length, grouping(sensorHolder));
+  }
+
+  /**
+   * Adds a range of records to the current dataHolder. Missing timestamps and values are passed
+   * as NaN, so the measurements get rejected.
+   * @param sensorData Records to be merged.
+   * @param from First record, inclusive.
+   * @param to Last record, exclusive.
+   * @param grouping Merges the measurements into the target structure.
+   */
+  private void mergeSensorData(SensorData[] sensorData, int from, int to,
+                               MeasurementConsumer grouping) {
+    Arrays.stream(sensorData, from, to)
         .filter(x -> x.getData() != null)
         .flatMap(x -> Stream.of(x.getData()))
-        .filter(this::validateMeasurement)
-        .forEach(x -> mergeDevice(x,sensorHolder));
+        .forEach(x -> grouping.accept(x.getBaseName(), x.getName(),
+            x.getBaseTimeStamp() != null ? x.getBaseTimeStamp() : Double.NaN,
+            x.getValue() != null ? x.getValue() : Double.NaN));
+  }
+
+  /**
+   * Adds all documents of the source to the target. Documents present in both get merged, the
+   * measurements of the source overwrite the ones of the target.
+   * @param source Documents to be merged.
+   * @param target Target structure.
+   * @param merged Receives the document of the target each source document was merged into.
+   */
+  private void mergeSensorHolder(
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> source,
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> target,
+      Consumer<DailySensorData> merged) {
+    source.forEach((device, types) -> types.forEach((type, dates) ->
+        dates.forEach((date, sensorData) -> {
+          DailySensorData targetData = target.computeIfAbsent(device, x -> new HashMap<>())
+              .computeIfAbsent(type, x -> new HashMap<>())
+              .computeIfAbsent(date, x -> sensorData);
+          if (targetData != sensorData) {
+            targetData.merge(sensorData);
+          }
+          merged.accept(targetData);
+        })));
   }
 
   /**
    * Checks if all necessary parameters are present.
-   * @param dataHolder Input to be validated.
    * @return true, if input was valid.
    */
-  private boolean validateMeasurement(DataHolder dataHolder) {
-    if (dataHolder.getBaseName() == null || dataHolder.getBaseName().isEmpty()
-        || dataHolder.getName() == null || dataHolder.getName().isEmpty()
-        || dataHolder.getBaseTimeStamp() == null || dataHolder.getValue() == null) {
+  private boolean validateMeasurement(String device, String type, double timestamp,
+                                      double value) {
+    if (device == null || device.isEmpty() || type == null || type.isEmpty()
+        || Double.isNaN(timestamp) || Double.isNaN(value)) {
       return false;
     }
     return true;
   }
 
-  private void mergeDevice(DataHolder dataHolder,
-                           Map<String, Map<String, Map<LocalDate, MongoSensorData>>> sensorHolder) {
-    sensorHolder.putIfAbsent(dataHolder.getBaseName(),new HashMap<>());
-    mergeType(dataHolder,sensorHolder.get(dataHolder.getBaseName()));
-  }
-  
-  private void mergeType(DataHolder dataHolder,
-                         Map<String, Map<LocalDate, MongoSensorData>> sensorHolder) {
-    sensorHolder.putIfAbsent(dataHolder.getName(), new HashMap<>());
-    mergeDate(dataHolder,sensorHolder.get(dataHolder.getName()));
-  }
-
-  private void mergeDate(DataHolder dataHolder, Map<LocalDate, MongoSensorData> documentMap) {
-    LocalDate date = convertTimestampToDate(dataHolder.getBaseTimeStamp().longValue());
-    documentMap.putIfAbsent(date,createMongoSensorData(dataHolder));
-    mergeSensorDataMeasurement(dataHolder, documentMap.get(date));
-  }
-
-  private void mergeSensorDataMeasurement(DataHolder dataHolder, MongoSensorData sensorData) {
-    LocalDateTime dateTime = convertTimestampToDateTime(dataHolder.getBaseTimeStamp().longValue());
-    sensorData.getDetailed().putIfAbsent(dateTime.getHour(),new HashMap<>());
-    Map<Integer,Double> hour = sensorData.getDetailed().get(dateTime.getHour());
-    hour.put(dateTime.getMinute(),dataHolder.getValue());
+  /**
+   * Adds a single measurement to the document of its device, type and date.
+   * @return The document of the measurement or null, if the measurement was invalid.
+   */
+  private DailySensorData mergeMeasurement(String device, String type, double timestamp,
+      double value, Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder) {
+    if (!validateMeasurement(device, type, timestamp, value)) {
+      metrics.increment(Count.REJECTED_MEASUREMENTS);
+      return null;
+    }
+    metrics.increment(Count.MEASUREMENTS);
+    if (ingestLag != null) {
+      ingestLag.record(device, type, (long) timestamp);
+    }
+    LocalDateTime dateTime = convertTimestampToDateTime((long) timestamp);
+    DailySensorData sensorData = sensorHolder.computeIfAbsent(device, x -> new HashMap<>())
+        .computeIfAbsent(type, x -> new HashMap<>())
+        .computeIfAbsent(dateTime.toLocalDate(), x -> createSensorData(device, type, x));
+    sensorData.set(dateTime.getHour(), dateTime.getMinute(), value);
+    return sensorData;
   }
 
   /**
-   * Create new MongoSensorData object, with basic data form dataHolder.
-   * @param dataHolder Dataholder for initialization.
-   * @return Initialized MongoSensorData object.
+   * Create new DailySensorData object for the document of a device, type and date.
+   * @return Initialized DailySensorData object.
    */
-  private MongoSensorData createMongoSensorData(DataHolder dataHolder) {
+  private DailySensorData createSensorData(String device, String type, LocalDate date) {
 
     MongoSensorData.Id id = new MongoSensorData.Id();
-    id.setDevice(dataHolder.getBaseName());
-    id.setDate(convertTimestampToDate(dataHolder.getBaseTimeStamp().longValue()));
-    id.setType(dataHolder.getName());
+    id.setDevice(device);
+    id.setDate(date);
+    id.setType(type);
 
-    MongoSensorData sensorData = new MongoSensorData();
-    sensorData.setId(id);
-    sensorData.setDetailed(new HashMap<>());
-    return sensorData;
+    return new DailySensorData(id);
   }
 
   /**
@@ -364,11 +1200,164 @@ public class ProcessDataHandler implements Closeable {
   }
 
 
+  /**
+   * Keeps the number and the estimated size of the documents of a holder within the configured
+   * limits. The documents are tracked in the order they were last touched. Once a limit is
+   * exceeded, the least recently touched documents are removed from the holder and written until
+   * it's down to half of the limits. Later measurements of a written document start a new one,
+   * which gets merged with the stored document when it's written itself.
+   */
+  private class DocumentFlusher {
+    private final Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder;
+    private final Consumer<List<DailySensorData>> writer;
+    private final Map<DailySensorData, Long> documents = new LinkedHashMap<>(16, 0.75f, true);
+    private DailySensorData lastTouched;
+    private long estimatedBytes;
+
+    DocumentFlusher(Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder,
+                    Consumer<List<DailySensorData>> writer) {
+      this.sensorHolder = sensorHolder;
+      this.writer = writer;
+    }
+
+    /**
+     * Marks the document as the most recently touched one.
+     * @param sensorData Document or null, which is ignored.
+     */
+    void touch(DailySensorData sensorData) {
+      // Consecutive measurements mostly belong to the same document.
+      if (sensorData == null || sensorData == lastTouched) {
+        return;
+      }
+      lastTouched = sensorData;
+      if (documents.get(sensorData) == null) {
+        long size = sensorData.estimateSize();
+        documents.put(sensorData, size);
+        estimatedBytes += size;
+        if (exceeds(maxBufferedDocuments, maxBufferedBytes)) {
+          flush();
+        }
+      }
+    }
+
+    private boolean exceeds(int maxDocuments, long maxBytes) {
+      return maxDocuments > 0 && documents.size() > maxDocuments
+          || maxBytes > 0 && estimatedBytes > maxBytes;
+    }
+
+    private void flush() {
+      List<DailySensorData> records = new ArrayList<>();
+      Iterator<Map.Entry<DailySensorData, Long>> eldest = documents.entrySet().iterator();
+      while (eldest.hasNext() && exceeds(maxBufferedDocuments / 2, maxBufferedBytes / 2)) {
+        Map.Entry<DailySensorData, Long> entry = eldest.next();
+        eldest.remove();
+        estimatedBytes -= entry.getValue();
+
+        MongoSensorData.Id id = entry.getKey().getId();
+        Map<String, Map<LocalDate, DailySensorData>> types = sensorHolder.get(id.getDevice());
+        Map<LocalDate, DailySensorData> dates = types.get(id.getType());
+        dates.remove(id.getDate());
+        if (dates.isEmpty()) {
+          types.remove(id.getType());
+          if (types.isEmpty()) {
+            sensorHolder.remove(id.getDevice());
+          }
+        }
+        records.add(entry.getKey());
+      }
+      lastTouched = null;
+
+      if (debug) {
+        logger.log("Flushing " + records.size() + " of " + (records.size() + documents.size())
+            + " buffered document(s).");
+      }
+      writer.accept(records);
+    }
+  }
+
+  /**
+   * Groups a range of records into documents. Large ranges get split in halves which are grouped
+   * concurrently into their own structures. The right half is merged into the left one, so the
+   * later measurement of a minute wins just like when grouping sequentially.
+   */
+  private class GroupingTask
+      extends RecursiveTask<Map<String, Map<String, Map<LocalDate, DailySensorData>>>> {
+    private static final long serialVersionUID = 1L;
+
+    private final SensorData[] sensorData;
+    private final int from;
+    private final int to;
+    private final int batchSize;
+
+    GroupingTask(SensorData[] sensorData, int from, int to, int batchSize) {
+      this.sensorData = sensorData;
+      this.from = from;
+      this.to = to;
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    protected Map<String, Map<String, Map<LocalDate, DailySensorData>>> compute() {
+      if (to - from <= batchSize) {
+        Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
+        mergeSensorData(sensorData, from, to, grouping(sensorHolder));
+        return sensorHolder;
+      }
+
+      int middle = (from + to) >>> 1;
+      GroupingTask right = new GroupingTask(sensorData, middle, to, batchSize);
+      right.fork();
+      Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder
+          = new GroupingTask(sensorData, from, middle, batchSize).compute();
+      mergeSensorHolder(right.join(), sensorHolder, x -> { });
+      return sensorHolder;
+    }
+  }
+
+  /**
+   * Extracts the messages of an envelope and merges their measurements.
+   */
+  @FunctionalInterface
+  private interface MessageExtractor {
+    int extract(MeasurementConsumer grouping) throws IOException;
+  }
+
+  /**
+   * Processes the input using a ProcessDataHandler.
+   * @param <T> Result of the processing.
+   */
+  @FunctionalInterface
+  public interface Processor<T> {
+    T process(ProcessDataHandler pdh) throws IOException;
+  }
+
+  /**
+   * Extracts the records of a batch and passes them on together with their id.
+   */
+  @FunctionalInterface
+  private interface BatchExtractor {
+    int extract(BatchRecordConsumer consumer) throws IOException;
+  }
+
+  /**
+   * Receives a record of a batch. The record is parsed using the passed extractor.
+   */
+  @FunctionalInterface
+  private interface BatchRecordConsumer {
+    void accept(String id, MessageExtractor parser) throws IOException;
+  }
+
   @Override
   public void close() {
+    if (writeExecutor != null) {
+      writeExecutor.shutdown();
+    }
     if (createGlobalConnection) {
-      if (globalMongoClient != null ) {
-        globalMongoClient.close();
+      synchronized (ProcessDataHandler.class) {
+        if (globalMongoClient != null ) {
+          globalMongoClient.close();
+          globalMongoClient = null;
+        }
       }
     } else {
       if (localMongoClient != null) {
@@ -0,0 +1,42 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+/**
+ * Decides whether a write which failed due to a conflicting concurrent modification gets
+ * retried. A policy is used for a single invocation and may be shared by concurrent writers.
+ *
+ * @author Udo Held
+ */
+public interface RetryPolicy {
+
+  /**
+   * Decides whether the write gets attempted again and waits as long as required before
+   * returning.
+   * @param failedAttempts Number of failed attempts of the current write, starting at 1.
+   * @return true, if the write should be attempted again.
+   */
+  boolean retry(int failedAttempts);
+
+  /**
+   * Returns the number of retries granted so far.
+   * @return Number of retries.
+   */
+  int getRetryCount();
+}
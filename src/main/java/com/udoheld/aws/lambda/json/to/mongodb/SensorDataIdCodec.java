@@ -0,0 +1,70 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * MongoDB driver codec for the id of the daily sensor documents. The id is encoded the same way
+ * as by Morphia using the {@link IsoDateConverter}, the date is stored as midnight UTC.
+ *
+ * @author Udo Held
+ */
+public class SensorDataIdCodec implements Codec<MongoSensorData.Id> {
+  private static final String FIELD_DEVICE = "device";
+  private static final String FIELD_DATE = "date";
+  private static final String FIELD_TYPE = "type";
+
+  @Override
+  public void encode(BsonWriter writer, MongoSensorData.Id value, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    writer.writeString(FIELD_DEVICE, value.getDevice());
+    writer.writeDateTime(FIELD_DATE, value.getDate().atStartOfDay()
+        .toInstant(ZoneOffset.UTC)
+        .toEpochMilli());
+    writer.writeString(FIELD_TYPE, value.getType());
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public MongoSensorData.Id decode(BsonReader reader, DecoderContext decoderContext) {
+    MongoSensorData.Id id = new MongoSensorData.Id();
+    reader.readStartDocument();
+    id.setDevice(reader.readString(FIELD_DEVICE));
+    id.setDate(Instant.ofEpochMilli(reader.readDateTime(FIELD_DATE))
+        .atZone(ZoneOffset.UTC)
+        .toLocalDate());
+    id.setType(reader.readString(FIELD_TYPE));
+    reader.readEndDocument();
+    return id;
+  }
+
+  @Override
+  public Class<MongoSensorData.Id> getEncoderClass() {
+    return MongoSensorData.Id.class;
+  }
+}
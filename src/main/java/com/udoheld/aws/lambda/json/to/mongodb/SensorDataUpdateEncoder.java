@@ -0,0 +1,129 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.model.DailySensorData;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonWriter;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+
+/**
+ * Encodes the measurements of a day straight into the filter and update document of an upsert,
+ * without mapping them to a {@link com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData}
+ * first.
+ *
+ * <p>The update sets every minute below {@code detailed}, increments the hourly sum and count of
+ * the summary, removes the stale hourly average and increments the version. The filter only
+ * matches if none of the minutes exist yet and the document either is empty or already maintains
+ * a running sum and count. Documents in the packed layout never match.</p>
+ *
+ * @author Udo Held
+ */
+public class SensorDataUpdateEncoder implements Encoder<DailySensorData> {
+  private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+  private final SensorDataIdCodec idCodec = new SensorDataIdCodec();
+
+  /**
+   * Creates the filter of the upsert.
+   * @param value Measurements to be written.
+   * @return Filter document.
+   */
+  public BsonDocument encodeFilter(DailySensorData value) {
+    BsonDocument filter = new BsonDocument();
+    BsonWriter writer = new BsonDocumentWriter(filter);
+    writer.writeStartDocument();
+    writer.writeName("_id");
+    idCodec.encode(writer, value.getId(), ENCODER_CONTEXT);
+
+    value.forEach((hour, minute, measurement) -> {
+      writer.writeStartDocument("detailed." + hour + "." + minute);
+      writer.writeBoolean("$exists", false);
+      writer.writeEndDocument();
+    });
+
+    writer.writeStartArray("$or");
+    writer.writeStartDocument();
+    writer.writeStartDocument("detailed");
+    writer.writeBoolean("$exists", false);
+    writer.writeEndDocument();
+    writer.writeEndDocument();
+    writer.writeStartDocument();
+    writer.writeStartDocument("summary.cnt");
+    writer.writeBoolean("$exists", true);
+    writer.writeEndDocument();
+    writer.writeEndDocument();
+    writer.writeEndArray();
+
+    writer.writeStartDocument("mask");
+    writer.writeBoolean("$exists", false);
+    writer.writeEndDocument();
+    writer.writeEndDocument();
+    return filter;
+  }
+
+  /**
+   * Creates the update document of the upsert.
+   * @param value Measurements to be written.
+   * @return Update document.
+   */
+  public BsonDocument encodeUpdate(DailySensorData value) {
+    BsonDocument update = new BsonDocument();
+    encode(new BsonDocumentWriter(update), value, ENCODER_CONTEXT);
+    return update;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, DailySensorData value, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+
+    writer.writeStartDocument("$set");
+    value.forEach((hour, minute, measurement) -> writer.writeDouble("detailed." + hour + "."
+        + minute, measurement));
+    writer.writeEndDocument();
+
+    writer.writeStartDocument("$inc");
+    for (int hour = 0; hour < DailySensorData.HOURS_PER_DAY; hour++) {
+      int count = value.count(hour);
+      if (count > 0) {
+        writer.writeDouble("summary.sum." + hour, value.sum(hour));
+        writer.writeInt32("summary.cnt." + hour, count);
+      }
+    }
+    writer.writeInt64("version", 1L);
+    writer.writeEndDocument();
+
+    writer.writeStartDocument("$unset");
+    for (int hour = 0; hour < DailySensorData.HOURS_PER_DAY; hour++) {
+      if (value.count(hour) > 0) {
+        writer.writeString("summary.avg." + hour, "");
+      }
+    }
+    writer.writeEndDocument();
+
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public Class<DailySensorData> getEncoderClass() {
+    return DailySensorData.class;
+  }
+}
@@ -18,70 +18,110 @@
 
 package com.udoheld.aws.lambda.json.to.mongodb;
 
-import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 
 /**
- * Extracts the actual message, if the content is passed from SNS and contains SNS headers.
+ * Extracts the actual messages, if the content is passed from SNS and contains SNS headers.
+ * The envelope is read token by token, all fields except the messages are skipped.
  * @author Udo Held
  */
 public class SnsMessageExtractor {
+  private static final String FIELD_RECORDS = "Records";
+  private static final String FIELD_SNS = "Sns";
+  private static final String FIELD_MESSAGE = "Message";
 
   /**
-   * Extract the message from the SNS header.
+   * Receives the extracted messages.
+   */
+  @FunctionalInterface
+  public interface MessageConsumer {
+    void accept(String message) throws IOException;
+  }
+
+  /**
+   * Extract the message of the first record from the SNS header.
    * @param input Json including SNS header
    * @return The message from the first record, if found. Otherwise null.
    */
   public static String extractSnsMessage(String input) {
-    Gson gson = new Gson();
-    SnsMessage message = gson.fromJson(input, SnsMessage.class);
-    if (message != null && message.getRecords() != null && message.getRecords().length > 0
-        && message.getRecords()[0].getSns() != null) {
-      return message.getRecords()[0].getSns().getMessage();
+    String[] message = new String[1];
+    try {
+      extractSnsMessages(new StringReader(input), x -> {
+        if (message[0] == null) {
+          message[0] = x;
+        }
+      });
+    } catch (IOException e) {
+      throw new JsonSyntaxException(e);
     }
-    return null;
+    return message[0];
   }
 
   /**
-   * Top level structure for SNS json.
+   * Extracts the messages of all records from the SNS header and passes them on in the order of
+   * the records.
+   * @param input Json including SNS header. The reader isn't closed.
+   * @param consumer Receives the messages.
+   * @return Number of messages found.
+   * @throws IOException if the input can't be read or isn't valid JSON.
    */
-  public static class SnsMessage {
-    @SerializedName("Records")
-    private SnsRecord [] records;
-
-    public SnsRecord[] getRecords() {
-      return records;
-    }
-
-    public void setRecords(SnsRecord[] records) {
-      this.records = records;
+  public static int extractSnsMessages(Reader input, MessageConsumer consumer)
+      throws IOException {
+    JsonReader reader = new JsonReader(input);
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return 0;
     }
-  }
 
-  public static class SnsRecord {
-    @SerializedName("Sns")
-    private Sns sns;
-
-    public Sns getSns() {
-      return sns;
-    }
-
-    public void setSns(Sns sns) {
-      this.sns = sns;
+    int messages = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (FIELD_RECORDS.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          messages += extractRecord(reader, consumer);
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
     }
+    reader.endObject();
+    return messages;
   }
 
-  public static class Sns {
-    @SerializedName("Message")
-    private String message;
-
-    public String getMessage() {
-      return message;
+  private static int extractRecord(JsonReader reader, MessageConsumer consumer)
+      throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return 0;
     }
 
-    public void setMessage(String message) {
-      this.message = message;
+    int messages = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (FIELD_SNS.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if (FIELD_MESSAGE.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+            consumer.accept(reader.nextString());
+            messages++;
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+      } else {
+        reader.skipValue();
+      }
     }
+    reader.endObject();
+    return messages;
   }
-
 }
@@ -0,0 +1,142 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parses JSON in limited SenML format token by token and passes every measurement on as soon as
+ * it has been read. Neither the input nor the parsed records are kept in memory. The input is
+ * either a single record or an array of records, each holding its measurements in {@code d}.
+ * Fields not needed for storing the measurements are skipped.
+ *
+ * @author Udo Held
+ */
+public class StreamingInputParser {
+  private static final String FIELD_DATA = "d";
+  private static final String FIELD_BASE_NAME = "bn";
+  private static final String FIELD_BASE_TIME = "bt";
+  private static final String FIELD_NAME = "n";
+  private static final String FIELD_VALUE = "v";
+
+  /**
+   * Receives the parsed measurements.
+   */
+  @FunctionalInterface
+  public interface MeasurementConsumer {
+    /**
+     * Accepts a single measurement. Missing fields are passed as null, missing numbers as NaN.
+     * @param device Base name of the measurement.
+     * @param type Name of the measurement.
+     * @param timestamp Unix timestamp in seconds.
+     * @param value Measured value.
+     */
+    void accept(String device, String type, double timestamp, double value);
+  }
+
+  /**
+   * Parses the input and passes all measurements to the consumer.
+   * @param input Input to be parsed. The reader isn't closed.
+   * @param consumer Receives the measurements.
+   * @return Number of records found.
+   * @throws IOException if the input can't be read or isn't valid JSON.
+   */
+  public int parse(Reader input, MeasurementConsumer consumer) throws IOException {
+    JsonReader reader = new JsonReader(input);
+    JsonToken token;
+    try {
+      token = reader.peek();
+    } catch (EOFException empty) {
+      return 0;
+    }
+
+    int records = 0;
+    if (token == JsonToken.BEGIN_ARRAY) {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        records += parseRecord(reader, consumer);
+      }
+      reader.endArray();
+    } else {
+      records += parseRecord(reader, consumer);
+    }
+    return records;
+  }
+
+  private int parseRecord(JsonReader reader, MeasurementConsumer consumer) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return 0;
+    }
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (FIELD_DATA.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          parseMeasurement(reader, consumer);
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return 1;
+  }
+
+  private void parseMeasurement(JsonReader reader, MeasurementConsumer consumer)
+      throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      reader.skipValue();
+      return;
+    }
+
+    String device = null;
+    String type = null;
+    double timestamp = Double.NaN;
+    double value = Double.NaN;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if (FIELD_BASE_NAME.equals(name)) {
+        device = reader.nextString();
+      } else if (FIELD_NAME.equals(name)) {
+        type = reader.nextString();
+      } else if (FIELD_BASE_TIME.equals(name)) {
+        timestamp = reader.nextDouble();
+      } else if (FIELD_VALUE.equals(name)) {
+        value = reader.nextDouble();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    consumer.accept(device, type, timestamp, value);
+  }
+}
@@ -18,6 +18,8 @@
 
 package com.udoheld.aws.lambda.json.to.mongodb.cfg;
 
+import java.util.Objects;
+
 /**
  * This Pojo holds the runtime configuration.
  * @author Udo Held
@@ -27,6 +29,19 @@ public class Config {
   private boolean debugInput;
   private boolean disableSnsRemoval;
   private boolean localtest;
+  private boolean streamingInput;
+  private int parallelGroupingThreshold = 1048576;
+  private int maxBufferedDocuments;
+  private int maxBufferedBytes;
+  private int maxDecompressedBytes = 67108864;
+  private boolean metrics;
+  private String metricsNamespace = "JsonToMongoDb";
+  private boolean metricsAllocation;
+  private int metricsBackfillDays = 7;
+  private int profilingSamplePercent;
+  private int profilingMaxSize = 10485760;
+  private int profilingTopEntries = 10;
+  private boolean invocationResult = true;
 
   private String mongoDbUsername;
   private String mongoDbPassword;
@@ -34,6 +49,14 @@ public class Config {
   private String mongoDbDatabase;
   private String mongoDbOptions;
   private boolean mongoDbKeepConnection;
+  private WriteMode mongoDbWriteMode = WriteMode.MERGE;
+  private DocumentLayout mongoDbDocumentLayout = DocumentLayout.NESTED;
+  private boolean mongoDbParallelWrites;
+  private boolean mongoDbVirtualThreads;
+  private int mongoDbRetryMaxAttempts = 10;
+  private int mongoDbRetryBaseDelay = 20;
+  private int mongoDbRetryMaxDelay = 1000;
+  private int mongoDbRetryBudget = 100;
 
   public boolean isDebug() {
     return debug;
@@ -67,6 +90,110 @@ public class Config {
     this.localtest = localtest;
   }
 
+  public boolean isStreamingInput() {
+    return streamingInput;
+  }
+
+  public void setStreamingInput(boolean streamingInput) {
+    this.streamingInput = streamingInput;
+  }
+
+  public int getParallelGroupingThreshold() {
+    return parallelGroupingThreshold;
+  }
+
+  public void setParallelGroupingThreshold(int parallelGroupingThreshold) {
+    this.parallelGroupingThreshold = parallelGroupingThreshold;
+  }
+
+  public int getMaxBufferedDocuments() {
+    return maxBufferedDocuments;
+  }
+
+  public void setMaxBufferedDocuments(int maxBufferedDocuments) {
+    this.maxBufferedDocuments = maxBufferedDocuments;
+  }
+
+  public int getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  public void setMaxBufferedBytes(int maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public int getMaxDecompressedBytes() {
+    return maxDecompressedBytes;
+  }
+
+  public void setMaxDecompressedBytes(int maxDecompressedBytes) {
+    this.maxDecompressedBytes = maxDecompressedBytes;
+  }
+
+  public boolean isMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(boolean metrics) {
+    this.metrics = metrics;
+  }
+
+  public String getMetricsNamespace() {
+    return metricsNamespace;
+  }
+
+  public void setMetricsNamespace(String metricsNamespace) {
+    this.metricsNamespace = metricsNamespace;
+  }
+
+  public boolean isMetricsAllocation() {
+    return metricsAllocation;
+  }
+
+  public void setMetricsAllocation(boolean metricsAllocation) {
+    this.metricsAllocation = metricsAllocation;
+  }
+
+  public int getMetricsBackfillDays() {
+    return metricsBackfillDays;
+  }
+
+  public void setMetricsBackfillDays(int metricsBackfillDays) {
+    this.metricsBackfillDays = metricsBackfillDays;
+  }
+
+  public int getProfilingSamplePercent() {
+    return profilingSamplePercent;
+  }
+
+  public void setProfilingSamplePercent(int profilingSamplePercent) {
+    this.profilingSamplePercent = profilingSamplePercent;
+  }
+
+  public int getProfilingMaxSize() {
+    return profilingMaxSize;
+  }
+
+  public void setProfilingMaxSize(int profilingMaxSize) {
+    this.profilingMaxSize = profilingMaxSize;
+  }
+
+  public int getProfilingTopEntries() {
+    return profilingTopEntries;
+  }
+
+  public void setProfilingTopEntries(int profilingTopEntries) {
+    this.profilingTopEntries = profilingTopEntries;
+  }
+
+  public boolean isInvocationResult() {
+    return invocationResult;
+  }
+
+  public void setInvocationResult(boolean invocationResult) {
+    this.invocationResult = invocationResult;
+  }
+
   public String getMongoDbUsername() {
     return mongoDbUsername;
   }
@@ -114,4 +241,117 @@ public class Config {
   public void setMongoDbKeepConnection(boolean mongoDbKeepConnection) {
     this.mongoDbKeepConnection = mongoDbKeepConnection;
   }
+
+  public WriteMode getMongoDbWriteMode() {
+    return mongoDbWriteMode;
+  }
+
+  public void setMongoDbWriteMode(WriteMode mongoDbWriteMode) {
+    this.mongoDbWriteMode = mongoDbWriteMode;
+  }
+
+  public DocumentLayout getMongoDbDocumentLayout() {
+    return mongoDbDocumentLayout;
+  }
+
+  public void setMongoDbDocumentLayout(DocumentLayout mongoDbDocumentLayout) {
+    this.mongoDbDocumentLayout = mongoDbDocumentLayout;
+  }
+
+  public boolean isMongoDbParallelWrites() {
+    return mongoDbParallelWrites;
+  }
+
+  public void setMongoDbParallelWrites(boolean mongoDbParallelWrites) {
+    this.mongoDbParallelWrites = mongoDbParallelWrites;
+  }
+
+  public boolean isMongoDbVirtualThreads() {
+    return mongoDbVirtualThreads;
+  }
+
+  public void setMongoDbVirtualThreads(boolean mongoDbVirtualThreads) {
+    this.mongoDbVirtualThreads = mongoDbVirtualThreads;
+  }
+
+  public int getMongoDbRetryMaxAttempts() {
+    return mongoDbRetryMaxAttempts;
+  }
+
+  public void setMongoDbRetryMaxAttempts(int mongoDbRetryMaxAttempts) {
+    this.mongoDbRetryMaxAttempts = mongoDbRetryMaxAttempts;
+  }
+
+  public int getMongoDbRetryBaseDelay() {
+    return mongoDbRetryBaseDelay;
+  }
+
+  public void setMongoDbRetryBaseDelay(int mongoDbRetryBaseDelay) {
+    this.mongoDbRetryBaseDelay = mongoDbRetryBaseDelay;
+  }
+
+  public int getMongoDbRetryMaxDelay() {
+    return mongoDbRetryMaxDelay;
+  }
+
+  public void setMongoDbRetryMaxDelay(int mongoDbRetryMaxDelay) {
+    this.mongoDbRetryMaxDelay = mongoDbRetryMaxDelay;
+  }
+
+  public int getMongoDbRetryBudget() {
+    return mongoDbRetryBudget;
+  }
+
+  public void setMongoDbRetryBudget(int mongoDbRetryBudget) {
+    this.mongoDbRetryBudget = mongoDbRetryBudget;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+
+    Config config = (Config) obj;
+    return debug == config.debug
+        && debugInput == config.debugInput
+        && disableSnsRemoval == config.disableSnsRemoval
+        && localtest == config.localtest
+        && streamingInput == config.streamingInput
+        && parallelGroupingThreshold == config.parallelGroupingThreshold
+        && maxBufferedDocuments == config.maxBufferedDocuments
+        && maxBufferedBytes == config.maxBufferedBytes
+        && maxDecompressedBytes == config.maxDecompressedBytes
+        && metrics == config.metrics
+        && Objects.equals(metricsNamespace, config.metricsNamespace)
+        && metricsAllocation == config.metricsAllocation
+        && metricsBackfillDays == config.metricsBackfillDays
+        && profilingSamplePercent == config.profilingSamplePercent
+        && profilingMaxSize == config.profilingMaxSize
+        && profilingTopEntries == config.profilingTopEntries
+        && invocationResult == config.invocationResult
+        && Objects.equals(mongoDbUsername, config.mongoDbUsername)
+        && Objects.equals(mongoDbPassword, config.mongoDbPassword)
+        && Objects.equals(mongoDbHosts, config.mongoDbHosts)
+        && Objects.equals(mongoDbDatabase, config.mongoDbDatabase)
+        && Objects.equals(mongoDbOptions, config.mongoDbOptions)
+        && mongoDbKeepConnection == config.mongoDbKeepConnection
+        && mongoDbWriteMode == config.mongoDbWriteMode
+        && mongoDbDocumentLayout == config.mongoDbDocumentLayout
+        && mongoDbParallelWrites == config.mongoDbParallelWrites
+        && mongoDbVirtualThreads == config.mongoDbVirtualThreads
+        && mongoDbRetryMaxAttempts == config.mongoDbRetryMaxAttempts
+        && mongoDbRetryBaseDelay == config.mongoDbRetryBaseDelay
+        && mongoDbRetryMaxDelay == config.mongoDbRetryMaxDelay
+        && mongoDbRetryBudget == config.mongoDbRetryBudget;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(mongoDbHosts, mongoDbDatabase, mongoDbUsername, mongoDbWriteMode);
+  }
 }
@@ -21,6 +21,9 @@ package com.udoheld.aws.lambda.json.to.mongodb.cfg;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.mongodb.MongoClientURI;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 /**
  * This class helps initializing the configuration.
  * @author Udo Held
@@ -32,12 +35,33 @@ public class ConfigurationInitializer {
   public static final String CFG_DEBUG_INPUT = "Debug_Input";
   public static final String CFG_DISABLE_SNS_REMOVAL = "Disable_SNS_Removal";
   public static final String CFG_LOCALTEST = "localtest";
+  public static final String CFG_STREAMING_INPUT = "Streaming_Input";
+  public static final String CFG_PARALLEL_GROUPING_THRESHOLD = "Parallel_Grouping_Threshold";
+  public static final String CFG_MAX_BUFFERED_DOCUMENTS = "Max_Buffered_Documents";
+  public static final String CFG_MAX_BUFFERED_BYTES = "Max_Buffered_Bytes";
+  public static final String CFG_MAX_DECOMPRESSED_BYTES = "Max_Decompressed_Bytes";
+  public static final String CFG_METRICS = "Metrics";
+  public static final String CFG_METRICS_NAMESPACE = "Metrics_Namespace";
+  public static final String CFG_METRICS_ALLOCATION = "Metrics_Allocation";
+  public static final String CFG_METRICS_BACKFILL_DAYS = "Metrics_Backfill_Days";
+  public static final String CFG_PROFILING_SAMPLE_PERCENT = "Profiling_Sample_Percent";
+  public static final String CFG_PROFILING_MAX_SIZE = "Profiling_Max_Size";
+  public static final String CFG_PROFILING_TOP_ENTRIES = "Profiling_Top_Entries";
+  public static final String CFG_INVOCATION_RESULT = "Invocation_Result";
   public static final String CFG_MONGODB_USERNAME = "MongoDB_Username";
   public static final String CFG_MONGODB_PASSWORD = "MongoDB_Password";
   public static final String CFG_MONGODB_HOSTS = "MongoDB_Hosts";
   public static final String CFG_MONGODB_DATABASE = "MongoDB_Database";
   public static final String CFG_MONGODB_OPTIONS = "MongoDB_Options";
   public static final String CFG_MONGODB_KEEP_CONNECTION = "MongoDB_Keep_Connection";
+  public static final String CFG_MONGODB_WRITE_MODE = "MongoDB_Write_Mode";
+  public static final String CFG_MONGODB_DOCUMENT_LAYOUT = "MongoDB_Document_Layout";
+  public static final String CFG_MONGODB_PARALLEL_WRITES = "MongoDB_Parallel_Writes";
+  public static final String CFG_MONGODB_VIRTUAL_THREADS = "MongoDB_Virtual_Threads";
+  public static final String CFG_MONGODB_RETRY_MAX_ATTEMPTS = "MongoDB_Retry_Max_Attempts";
+  public static final String CFG_MONGODB_RETRY_BASE_DELAY = "MongoDB_Retry_Base_Delay";
+  public static final String CFG_MONGODB_RETRY_MAX_DELAY = "MongoDB_Retry_Max_Delay";
+  public static final String CFG_MONGODB_RETRY_BUDGET = "MongoDB_Retry_Budget";
 
   private final Config config;
   private final Context context;
@@ -67,6 +91,19 @@ public class ConfigurationInitializer {
     config.setLocaltest(readValue(CFG_LOCALTEST, false));
     config.setDebugInput(readValue(CFG_DEBUG_INPUT,false));
     config.setDisableSnsRemoval(readValue(CFG_DISABLE_SNS_REMOVAL, false));
+    config.setStreamingInput(readValue(CFG_STREAMING_INPUT, false));
+    config.setParallelGroupingThreshold(readValue(CFG_PARALLEL_GROUPING_THRESHOLD, 1048576));
+    config.setMaxBufferedDocuments(readValue(CFG_MAX_BUFFERED_DOCUMENTS, 0));
+    config.setMaxBufferedBytes(readValue(CFG_MAX_BUFFERED_BYTES, 0));
+    config.setMaxDecompressedBytes(readValue(CFG_MAX_DECOMPRESSED_BYTES, 67108864));
+    config.setMetrics(readValue(CFG_METRICS, false));
+    config.setMetricsNamespace(readValue(CFG_METRICS_NAMESPACE, "JsonToMongoDb"));
+    config.setMetricsAllocation(readValue(CFG_METRICS_ALLOCATION, false));
+    config.setMetricsBackfillDays(readValue(CFG_METRICS_BACKFILL_DAYS, 7));
+    config.setProfilingSamplePercent(readValue(CFG_PROFILING_SAMPLE_PERCENT, 0));
+    config.setProfilingMaxSize(readValue(CFG_PROFILING_MAX_SIZE, 10485760));
+    config.setProfilingTopEntries(readValue(CFG_PROFILING_TOP_ENTRIES, 10));
+    config.setInvocationResult(readValue(CFG_INVOCATION_RESULT, true));
 
     initMongoDb();
 
@@ -88,6 +125,15 @@ public class ConfigurationInitializer {
     config.setMongoDbDatabase(readValue(CFG_MONGODB_DATABASE,
         config.isLocaltest() ? unitTestDefaultDb : ""));
     config.setMongoDbKeepConnection(readValue(CFG_MONGODB_KEEP_CONNECTION, false));
+    config.setMongoDbWriteMode(readValue(CFG_MONGODB_WRITE_MODE, WriteMode.MERGE));
+    config.setMongoDbDocumentLayout(readValue(CFG_MONGODB_DOCUMENT_LAYOUT,
+        DocumentLayout.NESTED));
+    config.setMongoDbParallelWrites(readValue(CFG_MONGODB_PARALLEL_WRITES, false));
+    config.setMongoDbVirtualThreads(readValue(CFG_MONGODB_VIRTUAL_THREADS, false));
+    config.setMongoDbRetryMaxAttempts(readValue(CFG_MONGODB_RETRY_MAX_ATTEMPTS, 10));
+    config.setMongoDbRetryBaseDelay(readValue(CFG_MONGODB_RETRY_BASE_DELAY, 20));
+    config.setMongoDbRetryMaxDelay(readValue(CFG_MONGODB_RETRY_MAX_DELAY, 1000));
+    config.setMongoDbRetryBudget(readValue(CFG_MONGODB_RETRY_BUDGET, 100));
   }
 
   private boolean readValue(String key, boolean defaultValue) {
@@ -127,6 +173,58 @@ public class ConfigurationInitializer {
     return value;
   }
 
+  private int readValue(String key, int defaultValue) {
+    int value = defaultValue;
+    String envValue = readEnvironmentEntry(key);
+    if (envValue != null && !envValue.isEmpty()) {
+      try {
+        value = Integer.parseInt(envValue.trim());
+      } catch (NumberFormatException e) {
+        String error = "ERROR: The value \"" + envValue + "\" for the environment variable \""
+            + key + "\" is not a number.";
+        context.getLogger().log(error);
+        throw new IllegalArgumentException(error, e);
+      }
+      if (debug) {
+        debugLogBuilder.append("Found value for key: " + key + " value: " + value
+            + linSep);
+      }
+    } else {
+      if (debug) {
+        debugLogBuilder.append("No valid value found for key: " + key + " using default: "
+            + value + linSep);
+      }
+    }
+    return value;
+  }
+
+  private <T extends Enum<T>> T readValue(String key, T defaultValue) {
+    T value = defaultValue;
+    String envValue = readEnvironmentEntry(key);
+    if (envValue != null && !envValue.isEmpty()) {
+      try {
+        value = Enum.valueOf(defaultValue.getDeclaringClass(),
+            envValue.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        String error = "ERROR: The value \"" + envValue + "\" for the environment variable \""
+            + key + "\" is invalid. Valid values are "
+            + Arrays.toString(defaultValue.getDeclaringClass().getEnumConstants()) + ".";
+        context.getLogger().log(error);
+        throw new IllegalArgumentException(error, e);
+      }
+      if (debug) {
+        debugLogBuilder.append("Found value for key: " + key + " value: " + value
+            + linSep);
+      }
+    } else {
+      if (debug) {
+        debugLogBuilder.append("No valid value found for key: " + key + " using default: "
+            + value + linSep);
+      }
+    }
+    return value;
+  }
+
   private String readPasswordValue(String key, String defaultValue) {
     String value = defaultValue;
     String envValue = readEnvironmentEntry(key);
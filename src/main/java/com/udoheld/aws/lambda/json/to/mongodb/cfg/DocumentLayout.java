@@ -0,0 +1,36 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb.cfg;
+
+/**
+ * Layouts for storing the measurements within the daily sensor documents.
+ * @author Udo Held
+ */
+public enum DocumentLayout {
+  /**
+   * Stores the measurements as sub-documents keyed by hour and minute. Single minutes can be
+   * updated without reading the document.
+   */
+  NESTED,
+  /**
+   * Stores a bit set of the minutes holding a measurement and the packed values of these minutes.
+   * The documents are considerably smaller, but need to be read and merged for every write.
+   */
+  PACKED
+}
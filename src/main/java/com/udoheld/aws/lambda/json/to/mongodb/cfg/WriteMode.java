@@ -0,0 +1,42 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb.cfg;
+
+/**
+ * Strategies for writing the daily sensor documents to MongoDB.
+ * @author Udo Held
+ */
+public enum WriteMode {
+  /**
+   * Reads the existing document, merges the new measurements in memory and saves the result
+   * guarded by the document version. Concurrent writers to the same document cause retries.
+   */
+  MERGE,
+  /**
+   * Sends a single upsert per document which sets every new minute individually and increments
+   * the hourly sum and count. No read is required and concurrent writers to the same document
+   * don't conflict. Documents which already contain some of the minutes get merged.
+   */
+  UPSERT,
+  /**
+   * Sends the same upserts as {@link #UPSERT} for all documents of an invocation within a single
+   * unordered bulk write. Only documents which failed are sent again.
+   */
+  BULK
+}
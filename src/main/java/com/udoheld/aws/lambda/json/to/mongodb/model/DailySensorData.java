@@ -0,0 +1,254 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory representation of the measurements of a device and type for a single day. Each
+ * minute of the day is a slot within a primitive array, a bit set marks the minutes which hold a
+ * measurement. It gets converted from and to the persisted {@link MongoSensorData} only when
+ * reading or writing documents.
+ *
+ * @author Udo Held
+ */
+public class DailySensorData {
+  public static final int HOURS_PER_DAY = 24;
+  public static final int MINUTES_PER_HOUR = 60;
+  public static final int MINUTES_PER_DAY = HOURS_PER_DAY * MINUTES_PER_HOUR;
+  // Object headers, references and the id including its date and strings without their chars.
+  private static final int ESTIMATED_OVERHEAD = 256;
+
+  private final MongoSensorData.Id id;
+  private final double[] values = new double[MINUTES_PER_DAY];
+  private final BitSet present = new BitSet(MINUTES_PER_DAY);
+
+  public DailySensorData(MongoSensorData.Id id) {
+    this.id = id;
+  }
+
+  /**
+   * Creates the in-memory representation of a persisted document. Both the nested and the packed
+   * layout are read. If a document contains both, the nested measurements take precedence.
+   * @param sensorData Persisted document.
+   * @return Measurements of the document.
+   */
+  public static DailySensorData fromMongoSensorData(MongoSensorData sensorData) {
+    DailySensorData dailySensorData = new DailySensorData(sensorData.getId());
+    if (sensorData.getMask() != null && sensorData.getValues() != null) {
+      dailySensorData.readPacked(sensorData.getMask(), sensorData.getValues());
+    }
+    if (sensorData.getDetailed() != null) {
+      sensorData.getDetailed()
+          .forEach((hour, minutes) -> {
+            if (hour != null && minutes != null) {
+              minutes.forEach((minute, value) -> {
+                if (minute != null && value != null) {
+                  dailySensorData.set(hour, minute, value);
+                }
+              });
+            }
+          });
+    }
+    return dailySensorData;
+  }
+
+  /**
+   * Creates the persisted form of the measurements, nested by hour and minute.
+   * @return Measurements by hour and minute.
+   */
+  public Map<Integer, Map<Integer, Double>> toDetailed() {
+    Map<Integer, Map<Integer, Double>> detailed = new HashMap<>();
+    forEach((hour, minute, value) -> detailed.computeIfAbsent(hour, x -> new HashMap<>())
+        .put(minute, value));
+    return detailed;
+  }
+
+  /**
+   * Creates the bit set of the packed layout marking all minutes holding a measurement.
+   * @return Presence mask.
+   */
+  public byte[] toPackedMask() {
+    return present.toByteArray();
+  }
+
+  /**
+   * Creates the values of the packed layout. The values of all minutes set within the mask are
+   * stored as little-endian doubles ordered by time.
+   * @return Packed values.
+   */
+  public byte[] toPackedValues() {
+    ByteBuffer buffer = ByteBuffer.allocate(size() * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      buffer.putDouble(values[i]);
+    }
+    return buffer.array();
+  }
+
+  private void readPacked(byte[] mask, byte[] packedValues) {
+    BitSet packedPresent = BitSet.valueOf(mask);
+    if (packedPresent.length() > MINUTES_PER_DAY
+        || packedPresent.cardinality() * Double.BYTES != packedValues.length) {
+      throw new IllegalArgumentException("The packed measurements are corrupted.");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(packedValues).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = packedPresent.nextSetBit(0); i >= 0; i = packedPresent.nextSetBit(i + 1)) {
+      values[i] = buffer.getDouble();
+    }
+    present.or(packedPresent);
+  }
+
+  public MongoSensorData.Id getId() {
+    return id;
+  }
+
+  /**
+   * Sets the measurement of a minute. An existing measurement gets overwritten.
+   * @param hour Hour of the day.
+   * @param minute Minute of the hour.
+   * @param value Measurement.
+   */
+  public void set(int hour, int minute, double value) {
+    int minuteOfDay = toMinuteOfDay(hour, minute);
+    values[minuteOfDay] = value;
+    present.set(minuteOfDay);
+  }
+
+  public boolean contains(int hour, int minute) {
+    return present.get(toMinuteOfDay(hour, minute));
+  }
+
+  /**
+   * Returns the measurement of a minute.
+   * @param hour Hour of the day.
+   * @param minute Minute of the hour.
+   * @return The measurement or {@link Double#NaN}, if there is none.
+   */
+  public double get(int hour, int minute) {
+    int minuteOfDay = toMinuteOfDay(hour, minute);
+    return present.get(minuteOfDay) ? values[minuteOfDay] : Double.NaN;
+  }
+
+  /**
+   * Adds all measurements of the source. Measurements of the source overwrite existing ones.
+   * @param source Measurements to be merged.
+   */
+  public void merge(DailySensorData source) {
+    for (int i = source.present.nextSetBit(0); i >= 0; i = source.present.nextSetBit(i + 1)) {
+      values[i] = source.values[i];
+    }
+    present.or(source.present);
+  }
+
+  /**
+   * Checks if all measurements of the source are present with the same values, hence merging the
+   * source wouldn't change anything.
+   * @param source Measurements to be checked.
+   * @return true, if all measurements are contained.
+   */
+  public boolean containsAll(DailySensorData source) {
+    for (int i = source.present.nextSetBit(0); i >= 0; i = source.present.nextSetBit(i + 1)) {
+      if (!present.get(i)
+          || Double.doubleToLongBits(values[i]) != Double.doubleToLongBits(source.values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of measurements of an hour.
+   * @param hour Hour of the day.
+   * @return Number of measurements.
+   */
+  public int count(int hour) {
+    int count = 0;
+    int end = toMinuteOfDay(hour, MINUTES_PER_HOUR - 1);
+    for (int i = present.nextSetBit(toMinuteOfDay(hour, 0)); i >= 0 && i <= end;
+         i = present.nextSetBit(i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the sum of the measurements of an hour.
+   * @param hour Hour of the day.
+   * @return Sum of the measurements.
+   */
+  public double sum(int hour) {
+    double sum = 0;
+    int end = toMinuteOfDay(hour, MINUTES_PER_HOUR - 1);
+    for (int i = present.nextSetBit(toMinuteOfDay(hour, 0)); i >= 0 && i <= end;
+         i = present.nextSetBit(i + 1)) {
+      sum += values[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the total number of measurements of the day.
+   * @return Number of measurements.
+   */
+  public int size() {
+    return present.cardinality();
+  }
+
+  /**
+   * Estimates the heap memory used by the measurements and the id.
+   * @return Estimated size in bytes.
+   */
+  public long estimateSize() {
+    return ESTIMATED_OVERHEAD + (long) values.length * Double.BYTES + present.size() / Byte.SIZE
+        + 2L * (length(id.getDevice()) + length(id.getType()));
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  /**
+   * Passes all measurements ordered by time to the consumer.
+   * @param consumer Consumer of the measurements.
+   */
+  public void forEach(MeasurementConsumer consumer) {
+    for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+      consumer.accept(i / MINUTES_PER_HOUR, i % MINUTES_PER_HOUR, values[i]);
+    }
+  }
+
+  private static int toMinuteOfDay(int hour, int minute) {
+    if (hour < 0 || hour >= HOURS_PER_DAY || minute < 0 || minute >= MINUTES_PER_HOUR) {
+      throw new IllegalArgumentException("Invalid time " + hour + ":" + minute + ".");
+    }
+    return hour * MINUTES_PER_HOUR + minute;
+  }
+
+  /**
+   * Consumer of a single measurement.
+   */
+  @FunctionalInterface
+  public interface MeasurementConsumer {
+    void accept(int hour, int minute, double value);
+  }
+}
@@ -24,8 +24,10 @@ import org.mongodb.morphia.annotations.Property;
 import org.mongodb.morphia.annotations.Version;
 
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Function;
 
 /**
@@ -40,6 +42,16 @@ public class MongoSensorData implements Cloneable {
 
   private Map<Integer,Map<Integer,Double>> detailed;
 
+  /**
+   * Packed layout: Bit set of the minutes of the day holding a measurement.
+   */
+  private byte[] mask;
+
+  /**
+   * Packed layout: Little-endian doubles of all minutes set within the mask, ordered by time.
+   */
+  private byte[] values;
+
   private Summary summary;
 
   @Version
@@ -61,6 +73,22 @@ public class MongoSensorData implements Cloneable {
     this.detailed = detailed;
   }
 
+  public byte[] getMask() {
+    return mask;
+  }
+
+  public void setMask(byte[] mask) {
+    this.mask = mask;
+  }
+
+  public byte[] getValues() {
+    return values;
+  }
+
+  public void setValues(byte[] values) {
+    this.values = values;
+  }
+
   public Summary getSummary() {
     return summary;
   }
@@ -87,6 +115,12 @@ public class MongoSensorData implements Cloneable {
       clone.setSummary((Summary) summary.clone());
     }
     clone.setVersion(version);
+    if (mask != null) {
+      clone.setMask(mask.clone());
+    }
+    if (values != null) {
+      clone.setValues(values.clone());
+    }
     if (detailed != null) {
       Map<Integer,Map<Integer,Double>> clonedDetailed = new HashMap<>();
 
@@ -142,6 +176,10 @@ public class MongoSensorData implements Cloneable {
       return false;
     }
 
+    if (! Arrays.equals(mask, data.getMask()) || ! Arrays.equals(values, data.getValues())) {
+      return false;
+    }
+
 
     return true;
   }
@@ -205,6 +243,11 @@ public class MongoSensorData implements Cloneable {
       return true;
     }
 
+    @Override
+    public int hashCode() {
+      return Objects.hash(device, date, type);
+    }
+
     @Override
     public Object clone() throws CloneNotSupportedException {
       Id clone = (Id) super.clone();
@@ -215,11 +258,21 @@ public class MongoSensorData implements Cloneable {
     }
   }
 
+  /**
+   * Hourly summary of the measurements. The running sum and count per hour can be updated
+   * incrementally. The average is derived from them.
+   */
   @Embedded
   public static class Summary implements Cloneable {
     @Property("avg")
     private Map<Integer,Double> average;
 
+    @Property("sum")
+    private Map<Integer,Double> sum;
+
+    @Property("cnt")
+    private Map<Integer,Integer> count;
+
     @Override
     public Object clone() throws CloneNotSupportedException {
       Summary clone = (Summary) super.clone();
@@ -231,6 +284,12 @@ public class MongoSensorData implements Cloneable {
                 new Integer(x.getKey()),x.getValue() == null ? null : new Double(x.getValue())));
         clone.setAverage(clonedAverage);
       }
+      if (sum != null) {
+        clone.setSum(new HashMap<>(sum));
+      }
+      if (count != null) {
+        clone.setCount(new HashMap<>(count));
+      }
       return clone;
     }
 
@@ -249,15 +308,65 @@ public class MongoSensorData implements Cloneable {
           || (this.getAverage() != null && ! this.getAverage().equals(summary.getAverage()))) {
         return false;
       }
+
+      if ((sum == null && summary.getSum() != null)
+          || (sum != null && ! sum.equals(summary.getSum()))) {
+        return false;
+      }
+
+      if ((count == null && summary.getCount() != null)
+          || (count != null && ! count.equals(summary.getCount()))) {
+        return false;
+      }
       return true;
     }
 
+    /**
+     * Returns the average per hour. For every hour with a running sum and count the average is
+     * derived from them, otherwise the stored average is used. A derived average is a new map,
+     * changes to it aren't reflected in the summary.
+     * @return Average per hour.
+     */
     public Map<Integer, Double> getAverage() {
-      return average;
+      if (sum == null || count == null) {
+        return average;
+      }
+      Map<Integer,Double> derivedAverage = average == null ? new HashMap<>()
+          : new HashMap<>(average);
+      count.entrySet()
+          .stream()
+          .filter(x -> x.getValue() != null && x.getValue() > 0 && sum.get(x.getKey()) != null)
+          .forEach(x -> derivedAverage.put(x.getKey(), sum.get(x.getKey()) / x.getValue()));
+      return derivedAverage;
     }
 
     public void setAverage(Map<Integer, Double> average) {
       this.average = average;
     }
+
+    /**
+     * Checks if the average is stored in the document, which is only the case for merged
+     * documents.
+     * @return true, if the average isn't derived.
+     */
+    public boolean isAverageStored() {
+      return average != null;
+    }
+
+    public Map<Integer, Double> getSum() {
+      return sum;
+    }
+
+    public void setSum(Map<Integer, Double> sum) {
+      this.sum = sum;
+    }
+
+    public Map<Integer, Integer> getCount() {
+      return count;
+    }
+
+    public void setCount(Map<Integer, Integer> count) {
+      this.count = count;
+    }
   }
 }
@@ -0,0 +1,226 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.ConfigurationInitializer;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cold start benchmark. Every run starts a fresh JVM simulating a new Lambda container, which
+ * processes a message through the {@link LambdaHandler} twice, once cold and once warm. The cold
+ * invocation is split into the phases the handler reports within its invocation result. The
+ * remaining time of the cold invocation is reported as setup, which covers the class loading,
+ * the configuration, the Morphia mapping and the construction of the MongoClient. The server
+ * selection happens with the first MongoDB command and is part of the first MongoDB phase.
+ *
+ * <p>The benchmark isn't part of the regular build. Run it using {@code mvn -Pbenchmark test}
+ * against the same local MongoDB the tests use. {@code -Dbenchmark.runs} sets the number of
+ * JVMs, {@code -Dbenchmark.jvmArgs} passes additional options to them, e.g.
+ * {@code -XX:TieredStopAtLevel=1}. {@code MongoDB_*} properties get passed on as configuration.
+ * A run fails, if any of its invocations doesn't succeed. The timings of every run are written
+ * in microseconds to {@code target/benchmark/cold-start.csv}.</p>
+ *
+ * @author Udo Held
+ */
+public class ColdStartBenchmark {
+  private static final String RESULT_PREFIX = "PHASES ";
+  // Phases of the invocation result timed within the cold invocation.
+  private static final String[] HANDLER_PHASES = {"read", "extraction", "parse", "grouping",
+      "merge", "mongoDbRead", "mongoDbWrite", "retryDelay"};
+  private static final String[] PHASES = {"jvm_start", "first_invocation", "first_setup",
+      "first_read", "first_extraction", "first_parse", "first_grouping", "first_merge",
+      "first_mongoDbRead", "first_mongoDbWrite", "first_retryDelay", "warm_invocation"};
+
+  private static final String MESSAGE = "{\"d\":[{\"bn\":\"urn:dev:mac:784b87a58c3d;temp1\","
+      + "\"bt\":1485869189.215,\"n\":\"temp\",\"u\":\"Cel\",\"v\":27.9}]}";
+
+  @Test
+  public void coldStart() throws IOException, InterruptedException {
+    int runs = Integer.getInteger("benchmark.runs", 10);
+    File resultDir = new File("target", "benchmark");
+    assertTrue(resultDir.isDirectory() || resultDir.mkdirs());
+
+    List<long[]> results = new ArrayList<>();
+    for (int run = 0; run < runs; run++) {
+      results.add(runContainer(run, resultDir));
+    }
+
+    try (PrintWriter writer = new PrintWriter(new File(resultDir, "cold-start.csv"),
+        StandardCharsets.UTF_8.name())) {
+      writer.println("run," + String.join(",", PHASES));
+      for (int run = 0; run < results.size(); run++) {
+        StringBuilder line = new StringBuilder(Integer.toString(run));
+        for (long nanos : results.get(run)) {
+          line.append(',').append(nanos / 1000);
+        }
+        writer.println(line);
+      }
+    }
+
+    System.out.println(report(results));
+  }
+
+  /**
+   * Runs a single container simulation in a new JVM.
+   * @return Duration of each phase in nanoseconds.
+   */
+  private long[] runContainer(int run, File resultDir) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java");
+    String jvmArgs = System.getProperty("benchmark.jvmArgs", "").trim();
+    if (!jvmArgs.isEmpty()) {
+      command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+    }
+    command.add("-D" + ConfigurationInitializer.CFG_LOCALTEST + "=true");
+    command.add("-D" + ConfigurationInitializer.CFG_MONGODB_KEEP_CONNECTION + "=true");
+    System.getProperties().stringPropertyNames().stream()
+        .filter(x -> x.startsWith("MongoDB_"))
+        .forEach(x -> command.add("-D" + x + "=" + System.getProperty(x)));
+    command.add("-cp");
+    command.add(System.getProperty("surefire.test.class.path",
+        System.getProperty("java.class.path")));
+    command.add(ColdStartBenchmark.class.getName());
+
+    Process process = new ProcessBuilder(command)
+        .redirectError(new File(resultDir, "run-" + run + ".log"))
+        .start();
+
+    String result = null;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(RESULT_PREFIX)) {
+          result = line.substring(RESULT_PREFIX.length());
+        }
+      }
+    }
+    assertEquals("Run " + run + " failed, see its log in " + resultDir, 0, process.waitFor());
+    assertTrue("Run " + run + " didn't report its phases.", result != null);
+
+    return Arrays.stream(result.split(",")).mapToLong(Long::parseLong).toArray();
+  }
+
+  private String report(List<long[]> results) {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("Cold start phases over %d runs in ms%n", results.size()));
+    report.append(String.format("%-20s %9s %9s %9s %9s%n", "phase", "min", "median", "p90",
+        "max"));
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      List<Long> values = new ArrayList<>();
+      for (long[] result : results) {
+        values.add(result[phase]);
+      }
+      Collections.sort(values);
+      report.append(String.format("%-20s %9.1f %9.1f %9.1f %9.1f%n", PHASES[phase],
+          values.get(0) / 1e6, values.get(values.size() / 2) / 1e6,
+          values.get((int) Math.ceil(values.size() * 0.9) - 1) / 1e6,
+          values.get(values.size() - 1) / 1e6));
+    }
+    return report.toString();
+  }
+
+  /**
+   * Entry point of a simulated container. Prints the duration of every phase in nanoseconds.
+   * @param args Not used.
+   * @throws Exception if any invocation fails.
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, Long> phases = new LinkedHashMap<>();
+    phases.put("jvm_start", (System.currentTimeMillis()
+        - ManagementFactory.getRuntimeMXBean().getStartTime()) * 1_000_000L);
+    Context context = TestConfigurationTest.getContext(
+        Logger.getLogger(ColdStartBenchmark.class.getName()));
+
+    long start = System.nanoTime();
+    byte[] cold = invoke(context);
+    start = measure(phases, "first_invocation", start);
+    byte[] warm = invoke(context);
+    measure(phases, "warm_invocation", start);
+    ProcessDataHandler.discardSharedProcessDataHandler();
+
+    JsonObject times = checkResult(cold).getAsJsonObject("timesMs");
+    checkResult(warm);
+    long handlerPhases = 0;
+    for (String phase : HANDLER_PHASES) {
+      long nanos = times.has(phase) ? (long) (times.get(phase).getAsDouble() * 1e6) : 0;
+      phases.put("first_" + phase, nanos);
+      handlerPhases += nanos;
+    }
+    phases.put("first_setup", phases.get("first_invocation") - handlerPhases);
+
+    StringBuilder result = new StringBuilder(RESULT_PREFIX);
+    for (String phase : PHASES) {
+      result.append(phases.get(phase)).append(',');
+    }
+    result.setLength(result.length() - 1);
+    System.out.println(result);
+  }
+
+  private static byte[] invoke(Context context) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new LambdaHandler().handleRequest(new ByteArrayInputStream(
+        MESSAGE.getBytes(StandardCharsets.UTF_8)), output, context);
+    return output.toByteArray();
+  }
+
+  /**
+   * Checks the invocation result, as the handler reports failures within its result only.
+   */
+  private static JsonObject checkResult(byte[] output) {
+    JsonObject result = new JsonParser().parse(new String(output, StandardCharsets.UTF_8))
+        .getAsJsonObject();
+    if (result.has("error") || result.getAsJsonObject("documents").get("failed").getAsInt() > 0
+        || result.getAsJsonObject("measurements").get("accepted").getAsInt() == 0) {
+      throw new IllegalStateException("The invocation failed: " + result);
+    }
+    return result;
+  }
+
+  private static long measure(Map<String, Long> phases, String phase, long start) {
+    long end = System.nanoTime();
+    phases.put(phase, end - start);
+    return end;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing the SqsBatchHandler and KinesisBatchHandler.
+ * @author Udo Held
+ */
+public class TestBatchHandler {
+  private Logger log = Logger.getLogger(this.getClass().getName());
+
+  private String mongoDbConnectionUrl = "mongodb://localhost/?connectTimeoutMS=2500&socketTimeoutMS=5000";
+  private String mongoDbDatabase = "unitTest";
+  private String mongoDbCollection = "sensorData";
+
+  @Test
+  public void testSqsBatch() throws IOException {
+    String input = "{\"Records\":[" + sqsRecord("1", buildMessage("dev1", 1485869189L, 20.5))
+        + "," + sqsRecord("2", "{\\\"d\\\":[") + ","
+        + sqsRecord("3", buildMessage("dev1", 1485869249L, 21.5)) + ","
+        + sqsRecord("4", buildMessage("dev2", 1485869189L, 22.5)) + "]}";
+
+    try (MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoDbConnectionUrl))) {
+      MongoCollection<Document> collection = dropCollection(mongoClient);
+
+      String response = handleRequest(new SqsBatchHandler(), input);
+      assertEquals("{\"batchItemFailures\":[{\"itemIdentifier\":\"2\"}]}", response);
+      assertEquals(2, collection.count());
+      Document detailed = (Document) collection.find(new Document("_id.device", "dev1")).first()
+          .get("detailed");
+      assertEquals(20.5, ((Document) detailed.get("13")).get("26"));
+      assertEquals(21.5, ((Document) detailed.get("13")).get("27"));
+    }
+  }
+
+  @Test
+  public void testKinesisBatch() throws IOException {
+    String input = "{\"Records\":[" + kinesisRecord("10", Base64.getEncoder().encodeToString(
+        buildMessage("dev1", 1485869189L, 20.5).replace("\\", "")
+            .getBytes(StandardCharsets.UTF_8))) + ","
+        + kinesisRecord("11", "!invalid!") + ","
+        + kinesisRecord("12", Base64.getEncoder().encodeToString(
+            TestCborInputParser.buildPack("dev2"))) + "]}";
+
+    try (MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoDbConnectionUrl))) {
+      MongoCollection<Document> collection = dropCollection(mongoClient);
+
+      String response = handleRequest(new KinesisBatchHandler(), input);
+      assertEquals("{\"batchItemFailures\":[{\"itemIdentifier\":\"11\"}]}", response);
+      assertEquals(4, collection.count());
+
+      assertEquals("{\"batchItemFailures\":[]}", handleRequest(new KinesisBatchHandler(),
+          "{\"Records\":[]}"));
+    }
+
+    try {
+      handleRequest(new KinesisBatchHandler(), "{\"Records\":[");
+      fail("IOException was expected.");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testAggregatedKinesisBatch() throws IOException {
+    byte[] dev1 = buildMessage("dev1", 1485869189L, 20.5).replace("\\", "")
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] dev2 = TestCborInputParser.buildPack("dev2");
+    String input = "{\"Records\":[" + kinesisRecord("20", Base64.getEncoder().encodeToString(
+        TestKplDeaggregator.aggregate(dev1, dev2))) + ","
+        + kinesisRecord("21", Base64.getEncoder().encodeToString(TestKplDeaggregator.aggregate(
+            buildMessage("dev3", 1485869189L, 20.5).replace("\\", "")
+                .getBytes(StandardCharsets.UTF_8), "{\"d\":[".getBytes(StandardCharsets.UTF_8))))
+        + "]}";
+
+    try (MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoDbConnectionUrl))) {
+      MongoCollection<Document> collection = dropCollection(mongoClient);
+
+      String response = handleRequest(new KinesisBatchHandler(), input);
+      assertEquals("{\"batchItemFailures\":[{\"itemIdentifier\":\"21\"}]}", response);
+      assertEquals(4, collection.count());
+      assertEquals(0, collection.count(new Document("_id.device", "dev3")));
+    }
+  }
+
+  private String handleRequest(BatchHandler handler, String input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    handler.handleRequest(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+        output, TestConfigurationTest.getContext(log));
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private MongoCollection<Document> dropCollection(MongoClient mongoClient) {
+    MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+    MongoCollection<Document> collection = db.getCollection(mongoDbCollection);
+    collection.drop();
+    return collection;
+  }
+
+  private String buildMessage(String device, long timestamp, double value) {
+    return "{\\\"d\\\":[{\\\"bn\\\":\\\"" + device + "\\\",\\\"bt\\\":" + timestamp
+        + ",\\\"n\\\":\\\"temp\\\",\\\"v\\\":" + value + "}]}";
+  }
+
+  private String sqsRecord(String messageId, String body) {
+    return "{\"messageId\":\"" + messageId + "\",\"receiptHandle\":\"handle\",\"body\":\"" + body
+        + "\",\"eventSource\":\"aws:sqs\"}";
+  }
+
+  private String kinesisRecord(String sequenceNumber, String data) {
+    return "{\"kinesis\":{\"partitionKey\":\"key\",\"sequenceNumber\":\"" + sequenceNumber
+        + "\",\"data\":\"" + data + "\"},\"eventSource\":\"aws:kinesis\"}";
+  }
+}
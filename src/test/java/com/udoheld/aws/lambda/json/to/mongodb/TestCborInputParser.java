@@ -0,0 +1,288 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing the CborInputParser.
+ * @author Udo Held
+ */
+public class TestCborInputParser {
+
+  @Test
+  public void testParsePack() throws IOException {
+    List<Object[]> measurements = parse(buildPack("dev1"));
+
+    assertEquals(3, measurements.size());
+    assertEquals("dev1", measurements.get(0)[0]);
+    assertEquals("temp", measurements.get(0)[1]);
+    assertEquals(1485869189.0, (double) measurements.get(0)[2], 0.0);
+    assertEquals(27.9, (double) measurements.get(0)[3], 0.0);
+    assertEquals("dev1", measurements.get(1)[0]);
+    assertEquals("hum", measurements.get(1)[1]);
+    assertEquals(1485869249.0, (double) measurements.get(1)[2], 0.0);
+    assertEquals(50.0, (double) measurements.get(1)[3], 0.0);
+    assertEquals(-1.5, (double) measurements.get(2)[3], 0.0);
+  }
+
+  @Test
+  public void testParseTextLabels() throws IOException {
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    // Indefinite length map wrapping the records in d, indefinite length array and text.
+    cbor.write(0xbf);
+    text(cbor, "d");
+    cbor.write(0x9f);
+    map(cbor, 5);
+    text(cbor, "bn");
+    cbor.write(0x7f);
+    text(cbor, "de");
+    text(cbor, "v2");
+    cbor.write(0xff);
+    text(cbor, "bt");
+    cbor.write(0x1a);
+    cbor.write(ByteBuffer.allocate(4).putInt(1485869189).array());
+    text(cbor, "n");
+    text(cbor, "temp");
+    text(cbor, "v");
+    cbor.write(0xfa);
+    cbor.write(ByteBuffer.allocate(4).putFloat(2.5f).array());
+    text(cbor, "u");
+    cbor.write(0xf6);
+    cbor.write(0xff);
+    text(cbor, "clientid");
+    cbor.write(0xf5);
+    cbor.write(0xff);
+
+    List<Object[]> measurements = parse(cbor.toByteArray());
+    assertEquals(1, measurements.size());
+    assertEquals("dev2", measurements.get(0)[0]);
+    assertEquals(2.5, (double) measurements.get(0)[3], 0.0);
+
+    assertEquals(0, new CborInputParser().parse(new ByteArrayInputStream(new byte[0]),
+        (device, type, timestamp, value) -> fail()));
+    try {
+      parse(new byte[]{(byte) 0x81, (byte) 0xa1, 0x00});
+      fail("EOFException was expected.");
+    } catch (EOFException expected) {
+    }
+  }
+
+  @Test
+  public void testMissingValue() throws IOException {
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    cbor.write(0x81);
+    map(cbor, 1);
+    cbor.write(0x00);
+    text(cbor, "temp");
+
+    List<Object[]> measurements = parse(cbor.toByteArray());
+    assertEquals(1, measurements.size());
+    assertNull(measurements.get(0)[0]);
+    assertEquals(Double.NaN, (double) measurements.get(0)[2], 0.0);
+    assertEquals(Double.NaN, (double) measurements.get(0)[3], 0.0);
+  }
+
+  @Test
+  public void testMissingBaseTime() throws IOException {
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    cbor.write(0x82);
+    map(cbor, 4);
+    cbor.write(0x21);
+    text(cbor, "dev1");
+    cbor.write(0x00);
+    text(cbor, "temp");
+    cbor.write(0x06);
+    cbor.write(0x18);
+    cbor.write(60);
+    cbor.write(0x02);
+    cbor.write(0x18);
+    cbor.write(20);
+    map(cbor, 2);
+    cbor.write(0x22);
+    cbor.write(0x1a);
+    cbor.write(ByteBuffer.allocate(4).putInt(1485869189).array());
+    cbor.write(0x02);
+    cbor.write(0x18);
+    cbor.write(21);
+
+    List<Object[]> measurements = parse(cbor.toByteArray());
+    assertEquals(Double.NaN, (double) measurements.get(0)[2], 0.0);
+    assertEquals(1485869189.0, (double) measurements.get(1)[2], 0.0);
+  }
+
+  @Test
+  public void testStringLength() throws IOException {
+    char[] name = new char[10000];
+    Arrays.fill(name, 'x');
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    cbor.write(0x81);
+    map(cbor, 2);
+    cbor.write(0x21);
+    cbor.write(0x79);
+    cbor.write(ByteBuffer.allocate(2).putShort((short) name.length).array());
+    cbor.write(new String(name).getBytes(StandardCharsets.UTF_8));
+    cbor.write(0x00);
+    text(cbor, "temp");
+    assertEquals(new String(name), parse(cbor.toByteArray()).get(0)[0]);
+
+    try {
+      // The declared length exceeds the remaining input.
+      parse(new byte[]{(byte) 0x81, (byte) 0xa1, 0x21, 0x7a, 0x00, 0x40, 0x00, 0x00, 0x61});
+      fail("EOFException was expected.");
+    } catch (EOFException expected) {
+    }
+    try {
+      parse(new byte[]{(byte) 0x81, (byte) 0xa1, 0x21, 0x7b, 0x7f, (byte) 0xff, (byte) 0xff,
+          (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+      fail("IOException was expected.");
+    } catch (IOException expected) {
+      assertEquals("CBOR string too long.", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testMaliciousInput() throws IOException {
+    byte[] arrays = new byte[10000];
+    Arrays.fill(arrays, (byte) 0x81);
+    assertInvalid(arrays, "CBOR input nested too deeply.");
+
+    byte[] maps = new byte[10000];
+    maps[0] = (byte) 0x81;
+    for (int i = 1; i < maps.length - 1; i += 2) {
+      maps[i] = (byte) 0xa1;
+      maps[i + 1] = 0x00;
+    }
+    assertInvalid(maps, "CBOR input nested too deeply.");
+
+    byte[] tags = new byte[10000];
+    Arrays.fill(tags, (byte) 0xc1);
+    tags[0] = (byte) 0x81;
+    tags[1] = (byte) 0xa1;
+    tags[2] = 0x00;
+    assertInvalid(tags, "Unexpected end of CBOR input.");
+
+    assertInvalid(new byte[]{(byte) 0x9b, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0},
+        "CBOR argument too large.");
+  }
+
+  /**
+   * Builds a SenML pack using the labels of RFC 8428. The second record inherits the base name
+   * and time and is 60 seconds later, the third one uses a half precision float.
+   */
+  static byte[] buildPack(String device) throws IOException {
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    // Self-described CBOR tag.
+    cbor.write(new byte[]{(byte) 0xd9, (byte) 0xd9, (byte) 0xf7});
+    cbor.write(0x83);
+    map(cbor, 4);
+    cbor.write(0x21);
+    text(cbor, device);
+    cbor.write(0x22);
+    cbor.write(0x1a);
+    cbor.write(ByteBuffer.allocate(4).putInt(1485869189).array());
+    cbor.write(0x00);
+    text(cbor, "temp");
+    cbor.write(0x02);
+    cbor.write(0xfb);
+    cbor.write(ByteBuffer.allocate(8).putDouble(27.9).array());
+
+    map(cbor, 3);
+    cbor.write(0x00);
+    text(cbor, "hum");
+    cbor.write(0x06);
+    cbor.write(0x18);
+    cbor.write(60);
+    cbor.write(0x02);
+    cbor.write(0x18);
+    cbor.write(50);
+
+    map(cbor, 2);
+    cbor.write(0x00);
+    text(cbor, "volt");
+    cbor.write(0x02);
+    cbor.write(new byte[]{(byte) 0xf9, (byte) 0xbe, 0x00});
+    return cbor.toByteArray();
+  }
+
+  /**
+   * Builds a SenML pack of temperatures one minute apart. Packs of 24 to 255 records start with
+   * {@code 0x98} followed by the size.
+   */
+  static byte[] buildPack(String device, int records) throws IOException {
+    ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+    cbor.write(0x98);
+    cbor.write(records);
+    for (int i = 0; i < records; i++) {
+      map(cbor, 4);
+      cbor.write(0x21);
+      text(cbor, device);
+      cbor.write(0x22);
+      cbor.write(0x1a);
+      cbor.write(ByteBuffer.allocate(4).putInt(1485869189 + i * 60).array());
+      cbor.write(0x00);
+      text(cbor, "temp");
+      cbor.write(0x02);
+      cbor.write(0x18);
+      cbor.write(20 + i);
+    }
+    return cbor.toByteArray();
+  }
+
+  private static void map(ByteArrayOutputStream cbor, int size) {
+    cbor.write(0xa0 | size);
+  }
+
+  private static void text(ByteArrayOutputStream cbor, String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    cbor.write(0x60 | bytes.length);
+    cbor.write(bytes);
+  }
+
+  private List<Object[]> parse(byte[] cbor) throws IOException {
+    List<Object[]> measurements = new ArrayList<>();
+    new CborInputParser().parse(new ByteArrayInputStream(cbor),
+        (device, type, timestamp, value) -> measurements.add(
+            new Object[]{device, type, timestamp, value}));
+    return measurements;
+  }
+
+  private void assertInvalid(byte[] cbor, String message) {
+    try {
+      parse(cbor);
+      fail("IOException was expected.");
+    } catch (IOException expected) {
+      assertEquals(message, expected.getMessage());
+    }
+  }
+}
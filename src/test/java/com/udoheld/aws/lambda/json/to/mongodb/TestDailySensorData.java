@@ -0,0 +1,136 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.model.DailySensorData;
+import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing the DailySensorData methods.
+ * @author Udo Held
+ */
+public class TestDailySensorData {
+
+  @Test
+  public void testSetAndMerge() {
+    DailySensorData data = new DailySensorData(null);
+    data.set(0, 0, 1.0);
+    data.set(23, 59, 2.0);
+    data.set(1, 30, 3.0);
+    data.set(1, 31, 4.0);
+    assertTrue(data.contains(23, 59));
+    assertFalse(data.contains(1, 32));
+    assertTrue(Double.isNaN(data.get(1, 32)));
+    assertEquals(4, data.size());
+    assertEquals(2, data.count(1));
+    assertEquals(7.0, data.sum(1), 0.0);
+    assertEquals(0, data.count(2));
+
+    DailySensorData source = new DailySensorData(null);
+    source.set(1, 30, 5.0);
+    source.set(2, 0, 6.0);
+    data.merge(source);
+    assertEquals(5, data.size());
+    assertEquals(5.0, data.get(1, 30), 0.0);
+    assertEquals(6.0, data.get(2, 0), 0.0);
+    assertEquals(2.0, data.get(23, 59), 0.0);
+
+    try {
+      data.set(24, 0, 1.0);
+      fail("IllegalArgumentException was expected.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testContainsAll() {
+    DailySensorData data = new DailySensorData(null);
+    data.set(1, 30, 3.0);
+    data.set(1, 31, 4.0);
+    DailySensorData source = new DailySensorData(null);
+    assertTrue(data.containsAll(source));
+    source.set(1, 31, 4.0);
+    assertTrue(data.containsAll(source));
+    source.set(1, 30, 3.5);
+    assertFalse(data.containsAll(source));
+    source.set(1, 30, 3.0);
+    source.set(1, 32, 5.0);
+    assertFalse(data.containsAll(source));
+  }
+
+  @Test
+  public void testConversion() {
+    MongoSensorData sensorData = new MongoSensorData();
+    sensorData.setId(new MongoSensorData.Id());
+    sensorData.setDetailed(new HashMap<>());
+    sensorData.getDetailed().put(1, new HashMap<>());
+    sensorData.getDetailed().get(1).put(4, 13.0);
+    sensorData.getDetailed().get(1).put(5, 13.5);
+    sensorData.getDetailed().put(5, new HashMap<>());
+    sensorData.getDetailed().get(5).put(8, 15.0);
+
+    DailySensorData data = DailySensorData.fromMongoSensorData(sensorData);
+    assertTrue(data.getId() == sensorData.getId());
+    assertEquals(3, data.size());
+    assertEquals(13.5, data.get(1, 5), 0.0);
+
+    Map<Integer, Map<Integer, Double>> detailed = data.toDetailed();
+    assertEquals(sensorData.getDetailed(), detailed);
+  }
+
+  @Test
+  public void testPackedConversion() {
+    DailySensorData data = new DailySensorData(null);
+    data.set(0, 0, 1.0);
+    data.set(12, 30, -2.5);
+    data.set(23, 59, 3.25);
+
+    MongoSensorData sensorData = new MongoSensorData();
+    sensorData.setMask(data.toPackedMask());
+    sensorData.setValues(data.toPackedValues());
+    assertEquals(3 * Double.BYTES, sensorData.getValues().length);
+
+    DailySensorData unpacked = DailySensorData.fromMongoSensorData(sensorData);
+    assertEquals(data.toDetailed(), unpacked.toDetailed());
+
+    // Nested measurements take precedence.
+    sensorData.setDetailed(new HashMap<>());
+    sensorData.getDetailed().put(12, new HashMap<>());
+    sensorData.getDetailed().get(12).put(30, 4.0);
+    unpacked = DailySensorData.fromMongoSensorData(sensorData);
+    assertEquals(3, unpacked.size());
+    assertEquals(4.0, unpacked.get(12, 30), 0.0);
+
+    sensorData.setValues(new byte[Double.BYTES]);
+    try {
+      DailySensorData.fromMongoSensorData(sensorData);
+      fail("IllegalArgumentException was expected.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
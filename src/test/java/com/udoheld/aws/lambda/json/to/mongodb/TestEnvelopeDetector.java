@@ -0,0 +1,75 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.EnvelopeDetector.Envelope;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testing the EnvelopeDetector.
+ * @author Udo Held
+ */
+public class TestEnvelopeDetector {
+
+  @Test
+  public void testDetect() throws IOException {
+    assertEquals(Envelope.SNS, detect("{\"Records\":[{\"EventSource\":\"aws:sns\"}]}"));
+    assertEquals(Envelope.SNS, detect("{\"Records\":[{\"EventVersion\":\"1.0\",\"Sns\":{}}]}"));
+    assertEquals(Envelope.SQS, detect(" {\"Records\":[{\"messageId\":\"1\",\"receiptHandle\":\"a\","
+        + "\"body\":\"{}\",\"eventSource\":\"aws:sqs\"}]}"));
+    assertEquals(Envelope.SQS, detect("{\"Records\":[{\"eventSource\":\"aws:sqs\"}]}"));
+    assertEquals(Envelope.KINESIS, detect("{\"Records\":[{\"kinesis\":{\"data\":\"e30=\"}}]}"));
+    assertEquals(Envelope.KINESIS, detect("{\"Records\":[{\"eventSource\":\"aws:kinesis\"}]}"));
+
+    assertEquals(Envelope.SENML, detect("[{\"Records\":[{\"EventSource\":\"aws:sns\"}]}]"));
+    assertEquals(Envelope.SENML, detect("{\"d\":[{\"bn\":\"aws:sns\",\"n\":\"Records\"}]}"));
+    assertEquals(Envelope.SENML, detect("{\"Records\":[]}"));
+    assertEquals(Envelope.SENML, detect("{\"Records\":[{\"EventSource\":\"aws:other\"}]}"));
+    assertEquals(Envelope.SENML, detect(""));
+    assertEquals(Envelope.SENML, detect("{\"Records\":[{\"EventSource\":\"aws:sn"));
+  }
+
+  @Test
+  public void testDetectLargeInput() throws IOException {
+    StringBuilder input = new StringBuilder("{\"d\":[");
+    while (input.length() < EnvelopeDetector.DETECTION_LENGTH * 2) {
+      input.append("{\"bn\":\"dev\",\"bt\":1485869189,\"n\":\"Records\",\"v\":1},");
+    }
+    input.append("{\"bn\":\"aws:sns\"}]}");
+    byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+
+    InputStream stream = new BufferedInputStream(new ByteArrayInputStream(bytes));
+    assertEquals(Envelope.SENML, EnvelopeDetector.detect(stream));
+    byte[] read = new byte[bytes.length];
+    assertEquals(bytes.length, stream.read(read));
+  }
+
+  private Envelope detect(String input) throws IOException {
+    return EnvelopeDetector.detect(new BufferedInputStream(new ByteArrayInputStream(
+        input.getBytes(StandardCharsets.UTF_8))));
+  }
+}
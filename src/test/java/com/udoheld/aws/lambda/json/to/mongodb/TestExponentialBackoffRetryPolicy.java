@@ -0,0 +1,64 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the exponential backoff retry policy.
+ * @author Udo Held
+ */
+public class TestExponentialBackoffRetryPolicy {
+
+  @Test
+  public void testMaxAttempts() {
+    ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(3, 0, 0, 100);
+    assertTrue(policy.retry(1));
+    assertTrue(policy.retry(2));
+    assertFalse(policy.retry(3));
+    assertEquals(2, policy.getRetryCount());
+  }
+
+  @Test
+  public void testRetryBudget() {
+    ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 0, 0, 2);
+    assertTrue(policy.retry(1));
+    assertTrue(policy.retry(1));
+    assertFalse(policy.retry(1));
+    assertEquals(2, policy.getRetryCount());
+  }
+
+  @Test
+  public void testDelay() {
+    ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 10, 50, 100);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(policy.calculateDelay(1) <= 10);
+      assertTrue(policy.calculateDelay(2) <= 20);
+      assertTrue(policy.calculateDelay(3) <= 40);
+      assertTrue(policy.calculateDelay(4) <= 50);
+      assertTrue(policy.calculateDelay(40) <= 50);
+      assertTrue(policy.calculateDelay(1) >= 0);
+    }
+    assertTrue(policy.retry(1));
+  }
+}
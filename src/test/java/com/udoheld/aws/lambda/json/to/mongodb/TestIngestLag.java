@@ -0,0 +1,92 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Count;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Value;
+import org.junit.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the IngestLag.
+ * @author Udo Held
+ */
+public class TestIngestLag {
+  private static final long START = 1485869189000L;
+
+  @Test
+  public void testPercentiles() {
+    IngestLag lag = new IngestLag(START, 7);
+    for (int i = 0; i < 98; i++) {
+      lag.record("dev1", "temp", START / 1000 - 2);
+    }
+    lag.record("dev1", "temp", START / 1000 - 400);
+    lag.record("dev2", "hum", START / 1000 - 86400 * 10);
+    lag.record("dev2", "hum", START / 1000 + 60);
+
+    InvocationMetrics metrics = new InvocationMetrics("Test", null);
+    lag.report(metrics);
+    assertEquals(Long.valueOf(5), metrics.getValue(Value.INGEST_LAG_P50));
+    assertEquals(Long.valueOf(5), metrics.getValue(Value.INGEST_LAG_P90));
+    assertEquals(Long.valueOf(900), metrics.getValue(Value.INGEST_LAG_P99));
+    assertEquals(Long.valueOf(864000), metrics.getValue(Value.INGEST_LAG_MAX));
+
+    JsonObject emf = new JsonParser().parse(metrics.toEmf(START)).getAsJsonObject();
+    assertEquals(864000, emf.get("IngestLagMax").getAsLong());
+    JsonObject ingestLag = emf.getAsJsonObject("IngestLag");
+    assertEquals(2, ingestLag.get("groups").getAsInt());
+    JsonArray largest = ingestLag.getAsJsonArray("largest");
+    JsonObject first = largest.get(0).getAsJsonObject();
+    assertEquals("dev2", first.get("device").getAsString());
+    assertEquals(2, first.get("count").getAsLong());
+    assertEquals(1, first.get("p50").getAsLong());
+    assertEquals(864000, first.get("p99").getAsLong());
+    assertEquals(99, largest.get(1).getAsJsonObject().get("count").getAsLong());
+  }
+
+  @Test
+  public void testBackfill() {
+    IngestLag lag = new IngestLag(START, 7);
+    assertEquals(LocalDate.of(2017, 1, 24), lag.getBackfillDate());
+    assertFalse(lag.recordDocument(LocalDate.of(2017, 1, 24)));
+    assertTrue(lag.recordDocument(LocalDate.of(2017, 1, 23)));
+    assertEquals(1, lag.getBackfillDocuments());
+
+    InvocationMetrics metrics = new InvocationMetrics("Test", null);
+    lag.report(metrics);
+    assertEquals(1, metrics.getCount(Count.BACKFILL_DOCUMENTS));
+    assertNull(metrics.getValue(Value.INGEST_LAG_P50));
+    assertFalse(new JsonParser().parse(metrics.toEmf(START)).getAsJsonObject()
+        .has("IngestLag"));
+
+    IngestLag disabled = new IngestLag(START, 0);
+    assertNull(disabled.getBackfillDate());
+    assertFalse(disabled.recordDocument(LocalDate.of(2000, 1, 1)));
+  }
+}
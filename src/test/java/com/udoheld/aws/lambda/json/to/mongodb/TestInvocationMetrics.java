@@ -0,0 +1,164 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Count;
+import com.udoheld.aws.lambda.json.to.mongodb.InvocationMetrics.Phase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the InvocationMetrics.
+ * @author Udo Held
+ */
+public class TestInvocationMetrics {
+
+  @Test
+  public void testEmbeddedMetricFormat() {
+    InvocationMetrics metrics = new InvocationMetrics("Test", "function");
+    metrics.add(Count.MEASUREMENTS, 5);
+    metrics.increment(Count.REJECTED_MEASUREMENTS);
+    metrics.start(Phase.PARSE).stop();
+
+    JsonObject emf = new JsonParser().parse(metrics.toEmf(1485869189000L)).getAsJsonObject();
+    JsonObject aws = emf.getAsJsonObject("_aws");
+    assertEquals(1485869189000L, aws.get("Timestamp").getAsLong());
+    JsonObject definition = aws.getAsJsonArray("CloudWatchMetrics").get(0).getAsJsonObject();
+    assertEquals("Test", definition.get("Namespace").getAsString());
+    assertEquals("FunctionName", definition.getAsJsonArray("Dimensions").get(0)
+        .getAsJsonArray().get(0).getAsString());
+    assertEquals(1 + Phase.values().length + Count.values().length,
+        definition.getAsJsonArray("Metrics").size());
+
+    assertEquals("function", emf.get("FunctionName").getAsString());
+    assertEquals(5, emf.get("Measurements").getAsLong());
+    assertEquals(1, emf.get("RejectedMeasurements").getAsLong());
+    assertEquals(0, emf.get("Documents").getAsLong());
+    assertTrue(emf.get("ParseTime").getAsDouble() >= 0);
+    assertTrue(emf.get("TotalTime").getAsDouble() >= emf.get("ParseTime").getAsDouble());
+  }
+
+  @Test
+  public void testNestedPhases() throws InterruptedException {
+    InvocationMetrics metrics = new InvocationMetrics("Test", null);
+    InvocationMetrics.Timer extraction = metrics.start(Phase.EXTRACTION);
+    InvocationMetrics.Timer parse = metrics.start(Phase.PARSE);
+    Thread.sleep(20);
+    parse.stop();
+    extraction.stop();
+
+    assertTrue(metrics.getTime(Phase.PARSE) >= 20000000L);
+    assertTrue(metrics.getTime(Phase.EXTRACTION) < metrics.getTime(Phase.PARSE));
+
+    JsonObject emf = new JsonParser().parse(metrics.toEmf(0)).getAsJsonObject();
+    assertFalse(emf.has("FunctionName"));
+    assertEquals(0, emf.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics").get(0)
+        .getAsJsonObject().getAsJsonArray("Dimensions").get(0).getAsJsonArray().size());
+  }
+
+  @Test
+  public void testConcurrentPhases() throws InterruptedException {
+    InvocationMetrics metrics = new InvocationMetrics("Test", null);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < 5; j++) {
+          InvocationMetrics.Timer write = metrics.start(Phase.MONGODB_WRITE);
+          try {
+            Thread.sleep(20);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          write.stop();
+        }
+      }));
+    }
+    InvocationMetrics.Timer extraction = metrics.start(Phase.EXTRACTION);
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    extraction.stop();
+
+    // The writes of other threads are neither nested into each other nor into the extraction.
+    assertTrue(metrics.getTime(Phase.MONGODB_WRITE) >= 4 * 5 * 20000000L);
+    assertTrue(metrics.getTime(Phase.EXTRACTION) >= 5 * 20000000L);
+  }
+
+  @Test
+  public void testAllocation() {
+    InvocationMetrics metrics = new InvocationMetrics("Test", "function", true);
+    InvocationMetrics.Timer parse = metrics.start(Phase.PARSE);
+    List<long[]> allocated = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      allocated.add(new long[8192]);
+    }
+    InvocationMetrics.Timer grouping = metrics.startTiming(Phase.GROUPING);
+    allocated.add(new long[8192]);
+    grouping.stop();
+    parse.stop();
+    assertEquals(17, allocated.size());
+
+    assertEquals(0, metrics.getAllocatedBytes(Phase.GROUPING));
+    JsonObject emf = new JsonParser().parse(metrics.toEmf(0)).getAsJsonObject();
+    assertEquals(1 + Phase.values().length + Count.values().length + 1 + Phase.values().length
+        + 3, emf.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics").get(0)
+        .getAsJsonObject().getAsJsonArray("Metrics").size());
+    if (MemoryTelemetry.getAllocatedBytes() > 0) {
+      assertTrue(metrics.getAllocatedBytes(Phase.PARSE) >= 17 * 8192 * 8);
+      assertTrue(emf.get("AllocatedBytes").getAsLong()
+          >= emf.get("ParseAllocatedBytes").getAsLong());
+    }
+    assertEquals(0, emf.get("GroupingAllocatedBytes").getAsLong());
+    assertTrue(emf.get("GcCount").getAsLong() >= 0);
+    assertTrue(emf.get("GcTime").getAsLong() >= 0);
+    assertTrue(emf.get("PeakHeapBytes").getAsLong() > 0);
+
+    JsonObject plain = new JsonParser().parse(new InvocationMetrics("Test", null).toEmf(0))
+        .getAsJsonObject();
+    assertFalse(plain.has("AllocatedBytes"));
+    assertFalse(plain.has("ParseAllocatedBytes"));
+  }
+
+  @Test
+  public void testDisabled() {
+    InvocationMetrics metrics = InvocationMetrics.DISABLED;
+    assertFalse(metrics.isEnabled());
+    metrics.start(Phase.PARSE).stop();
+    metrics.increment(Count.DOCUMENTS);
+    assertEquals(0, metrics.getTime(Phase.PARSE));
+    assertEquals(0, metrics.getCount(Count.DOCUMENTS));
+
+    List<String> lines = new ArrayList<>();
+    metrics.log(lines::add);
+    assertTrue(lines.isEmpty());
+
+    new InvocationMetrics("Test", null).log(lines::add);
+    assertEquals(1, lines.size());
+  }
+}
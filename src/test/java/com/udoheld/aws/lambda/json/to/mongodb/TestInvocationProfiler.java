@@ -0,0 +1,85 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the InvocationProfiler.
+ * @author Udo Held
+ */
+public class TestInvocationProfiler {
+
+  @Test
+  public void testProfiling() throws IOException {
+    Config config = new Config();
+    config.setProfilingSamplePercent(100);
+    List<String> lines = new ArrayList<>();
+
+    Path first = profile(config, lines);
+    assertTrue(Files.exists(first));
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).startsWith("Profile of "));
+    assertTrue(lines.get(0).contains("Hot methods:"));
+    assertTrue(lines.get(0).contains("Allocation sites:"));
+
+    Path second = profile(config, lines);
+    try {
+      assertFalse(Files.exists(first));
+      assertTrue(Files.exists(second));
+    } finally {
+      Files.deleteIfExists(second);
+    }
+  }
+
+  @Test
+  public void testDisabled() {
+    InvocationProfiler profiler = InvocationProfiler.forInvocation(new Config(), x -> { });
+    assertSame(InvocationProfiler.DISABLED, profiler);
+    assertFalse(profiler.isEnabled());
+    assertNull(profiler.stop(x -> { }));
+  }
+
+  private Path profile(Config config, List<String> lines) {
+    InvocationProfiler profiler = InvocationProfiler.forInvocation(config, lines::add);
+    assertTrue(profiler.isEnabled());
+    List<String> values = new ArrayList<>();
+    long end = System.currentTimeMillis() + 200;
+    while (System.currentTimeMillis() < end) {
+      values.add(String.valueOf(Math.random()));
+      if (values.size() > 10000) {
+        values.clear();
+      }
+    }
+    return profiler.stop(lines::add);
+  }
+}
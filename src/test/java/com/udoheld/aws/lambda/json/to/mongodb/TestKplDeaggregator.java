@@ -0,0 +1,125 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing the KplDeaggregator.
+ * @author Udo Held
+ */
+public class TestKplDeaggregator {
+
+  @Test
+  public void testDeaggregate() throws IOException {
+    List<String> records = new ArrayList<>();
+    assertEquals(3, KplDeaggregator.deaggregate(aggregate("first".getBytes(StandardCharsets.UTF_8),
+        new byte[0], "third".getBytes(StandardCharsets.UTF_8)), collect(records)));
+    assertEquals(Arrays.asList("first", "", "third"), records);
+  }
+
+  @Test
+  public void testNotAggregated() throws IOException {
+    List<String> records = new ArrayList<>();
+    assertEquals(1, KplDeaggregator.deaggregate("plain".getBytes(StandardCharsets.UTF_8),
+        collect(records)));
+    assertEquals(1, KplDeaggregator.deaggregate(new byte[0], collect(records)));
+
+    byte[] corrupt = aggregate("first".getBytes(StandardCharsets.UTF_8));
+    corrupt[corrupt.length - 1]++;
+    assertEquals(1, KplDeaggregator.deaggregate(corrupt, collect(records)));
+    assertEquals(3, records.size());
+    assertEquals(corrupt.length, records.get(2).getBytes(StandardCharsets.ISO_8859_1).length);
+  }
+
+  @Test
+  public void testTruncated() {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(0x1a);
+    body.write(0x7f);
+    body.write(0x00);
+    try {
+      KplDeaggregator.deaggregate(frame(body.toByteArray()), (buffer, offset, length) -> { });
+      fail("IOException was expected.");
+    } catch (IOException expected) {
+    }
+  }
+
+  private KplDeaggregator.RecordConsumer collect(List<String> records) {
+    return (buffer, offset, length) -> records.add(
+        new String(buffer, offset, length, StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Builds a KPL aggregated record holding the given user records. Each user record references
+   * the single partition key and carries a tag, which get skipped while de-aggregating.
+   */
+  static byte[] aggregate(byte[]... userRecords) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeBytes(body, 1, "key".getBytes(StandardCharsets.UTF_8));
+    for (byte[] userRecord : userRecords) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      record.write(0x08);
+      record.write(0x00);
+      writeBytes(record, 3, userRecord);
+      writeBytes(record, 4, new byte[]{0x0a, 0x01, 't'});
+      writeBytes(body, 3, record.toByteArray());
+    }
+    return frame(body.toByteArray());
+  }
+
+  private static byte[] frame(byte[] body) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    bos.write(0xf3);
+    bos.write(0x89);
+    bos.write(0x9a);
+    bos.write(0xc2);
+    bos.write(body, 0, body.length);
+    try {
+      byte[] checksum = MessageDigest.getInstance("MD5").digest(body);
+      bos.write(checksum, 0, checksum.length);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    return bos.toByteArray();
+  }
+
+  private static void writeBytes(ByteArrayOutputStream bos, int field, byte[] value) {
+    bos.write(field << 3 | 2);
+    int length = value.length;
+    while (length >= 0x80) {
+      bos.write(length & 0x7f | 0x80);
+      length >>>= 7;
+    }
+    bos.write(length);
+    bos.write(value, 0, value.length);
+  }
+}
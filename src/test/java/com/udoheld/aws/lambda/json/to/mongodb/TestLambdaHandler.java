@@ -19,17 +19,26 @@
 package com.udoheld.aws.lambda.json.to.mongodb;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.ConfigurationInitializer;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.logging.Logger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Udo Held
@@ -52,6 +61,51 @@ public class TestLambdaHandler {
     lh.handleRequest(bis,null,TestConfigurationTest.getContext(log));
   }
 
+  @Test
+  public void testLambdaHandlerResult() throws IOException {
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      mongoClient.getDatabase(mongoDbDatabase).getCollection(mongoDbCollection).drop();
+
+      JsonObject result = handleRequest(simpleJson);
+      JsonObject measurements = result.getAsJsonObject("measurements");
+      assertEquals(1, measurements.get("accepted").getAsInt());
+      assertEquals(0, measurements.get("rejected").getAsInt());
+      JsonObject documents = result.getAsJsonObject("documents");
+      assertEquals(1, documents.get("inserted").getAsInt());
+      assertEquals(0, documents.get("failed").getAsInt());
+      assertEquals(0, result.getAsJsonArray("failedDocuments").size());
+      assertTrue(result.getAsJsonObject("timesMs").get("total").getAsDouble() > 0);
+      assertTrue(result.getAsJsonObject("timesMs").has("mongoDbWrite"));
+      assertFalse(result.has("error"));
+
+      documents = handleRequest(simpleJson).getAsJsonObject("documents");
+      assertEquals(0, documents.get("inserted").getAsInt());
+      assertEquals(1, documents.get("unchanged").getAsInt());
+
+      assertTrue(handleRequest("{\"d\":[").has("error"));
+    }
+
+    System.setProperty(ConfigurationInitializer.CFG_INVOCATION_RESULT, "false");
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      new LambdaHandler().handleRequest(new ByteArrayInputStream(simpleJson.getBytes(
+          StandardCharsets.UTF_8)), output, TestConfigurationTest.getContext(log));
+      assertEquals(0, output.size());
+    } finally {
+      System.clearProperty(ConfigurationInitializer.CFG_INVOCATION_RESULT);
+    }
+  }
+
+  private JsonObject handleRequest(String input) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new LambdaHandler().handleRequest(new ByteArrayInputStream(input.getBytes(
+        StandardCharsets.UTF_8)), output, TestConfigurationTest.getContext(log));
+    return new JsonParser().parse(new String(output.toByteArray(), StandardCharsets.UTF_8))
+        .getAsJsonObject();
+  }
+
   @Test
   public void testLambdaHandlerSns() throws IOException {
     ByteArrayInputStream bis = new ByteArrayInputStream(jsonWithSnsHeader.getBytes());
@@ -69,4 +123,164 @@ public class TestLambdaHandler {
       assertEquals(1,collection.count());
     }
   }
+
+  @Test
+  public void testLambdaHandlerStreaming() throws IOException {
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    System.setProperty(ConfigurationInitializer.CFG_STREAMING_INPUT, "true");
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ShortReadInputStream(simpleJson.getBytes(StandardCharsets.UTF_8)),
+          null, TestConfigurationTest.getContext(log));
+      assertEquals(1,collection.count());
+
+      lh.handleRequest(new ShortReadInputStream(jsonWithSnsHeader.getBytes(
+          StandardCharsets.UTF_8)), null, TestConfigurationTest.getContext(log));
+      assertEquals(2,collection.count());
+    } finally {
+      System.clearProperty(ConfigurationInitializer.CFG_STREAMING_INPUT);
+    }
+  }
+
+  @Test
+  public void testLambdaHandlerShortReads() throws IOException {
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ShortReadInputStream(jsonWithSnsHeader.getBytes(
+          StandardCharsets.UTF_8)), null, TestConfigurationTest.getContext(log));
+
+      assertEquals(1,collection.count());
+    }
+  }
+
+  @Test
+  public void testLambdaHandlerSnsRecords() throws IOException {
+    String message = simpleJson.replace("\"", "\\\"");
+    String input = "{\"Records\":[{\"EventSource\":\"aws:sns\",\"Sns\":{\"Message\":\""
+        + message + "\"}},{\"EventSource\":\"aws:sns\",\"Sns\":{\"Message\":\""
+        + message.replace("784b87a58c3d", "784b87a58c3e") + "\"}}]}";
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), null,
+          TestConfigurationTest.getContext(log));
+      assertEquals(2,collection.count());
+
+      collection.drop();
+      System.setProperty(ConfigurationInitializer.CFG_STREAMING_INPUT, "true");
+      try {
+        lh.handleRequest(new ShortReadInputStream(input.getBytes(StandardCharsets.UTF_8)), null,
+            TestConfigurationTest.getContext(log));
+      } finally {
+        System.clearProperty(ConfigurationInitializer.CFG_STREAMING_INPUT);
+      }
+      assertEquals(2,collection.count());
+    }
+  }
+
+  @Test
+  public void testLambdaHandlerSqsAndKinesis() throws IOException {
+    String sqsInput = "{\"Records\":[{\"messageId\":\"1\",\"receiptHandle\":\"a\",\"body\":\""
+        + simpleJson.replace("\"", "\\\"") + "\",\"eventSource\":\"aws:sqs\"}]}";
+    String kinesisInput = "{\"Records\":[{\"kinesis\":{\"sequenceNumber\":\"1\",\"data\":\""
+        + Base64.getEncoder().encodeToString(simpleJson.replace("784b87a58c3d", "784b87a58c3e")
+        .getBytes(StandardCharsets.UTF_8)) + "\"},\"eventSource\":\"aws:kinesis\"}]}";
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ByteArrayInputStream(sqsInput.getBytes(StandardCharsets.UTF_8)), null,
+          TestConfigurationTest.getContext(log));
+      assertEquals(1,collection.count());
+
+      System.setProperty(ConfigurationInitializer.CFG_STREAMING_INPUT, "true");
+      try {
+        lh.handleRequest(new ByteArrayInputStream(kinesisInput.getBytes(StandardCharsets.UTF_8)),
+            null, TestConfigurationTest.getContext(log));
+      } finally {
+        System.clearProperty(ConfigurationInitializer.CFG_STREAMING_INPUT);
+      }
+      assertEquals(2,collection.count());
+    }
+  }
+
+  @Test
+  public void testLambdaHandlerCompressed() throws IOException {
+    String snsInput = "{\"Records\":[{\"EventSource\":\"aws:sns\",\"Sns\":{\"Message\":\""
+        + Base64.getEncoder().encodeToString(TestPayloadDecoder.gzip(simpleJson.replace(
+        "784b87a58c3d", "784b87a58c3e"))) + "\"}}]}";
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ByteArrayInputStream(TestPayloadDecoder.gzip(simpleJson)), null,
+          TestConfigurationTest.getContext(log));
+      assertEquals(1,collection.count());
+
+      lh.handleRequest(new ByteArrayInputStream(TestPayloadDecoder.gzip(snsInput)), null,
+          TestConfigurationTest.getContext(log));
+      assertEquals(2,collection.count());
+    }
+  }
+
+  @Test
+  public void testLambdaHandlerCbor() throws IOException {
+    String kinesisInput = "{\"Records\":[{\"kinesis\":{\"sequenceNumber\":\"1\",\"data\":\""
+        + Base64.getEncoder().encodeToString(TestCborInputParser.buildPack("dev2"))
+        + "\"},\"eventSource\":\"aws:kinesis\"}]}";
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase db = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection collection = db.getCollection(mongoDbCollection);
+      collection.drop();
+
+      LambdaHandler lh = new LambdaHandler();
+      lh.handleRequest(new ByteArrayInputStream(TestCborInputParser.buildPack("dev1")), null,
+          TestConfigurationTest.getContext(log));
+      assertEquals(3,collection.count());
+
+      lh.handleRequest(new ByteArrayInputStream(kinesisInput.getBytes(StandardCharsets.UTF_8)),
+          null, TestConfigurationTest.getContext(log));
+      assertEquals(6,collection.count());
+    }
+  }
+
+  /**
+   * Returns at most 100 bytes per read like a slow network stream.
+   */
+  private static class ShortReadInputStream extends ByteArrayInputStream {
+    ShortReadInputStream(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, 100));
+    }
+  }
 }
@@ -0,0 +1,116 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ServerHeartbeatFailedEvent;
+import com.mongodb.event.ServerHeartbeatSucceededEvent;
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Testing the MongoDbInstrumentation.
+ * @author Udo Held
+ */
+public class TestMongoDbInstrumentation {
+
+  @Test
+  public void testReport() {
+    MongoDbInstrumentation instrumentation = new MongoDbInstrumentation();
+    ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+    ConnectionDescription connection = new ConnectionDescription(serverId);
+    runCommand(instrumentation, connection, "find", 500000L, false);
+    MongoDbInstrumentation.Snapshot start = instrumentation.snapshot();
+
+    runCommand(instrumentation, connection, "find", 3000000L, false);
+    runCommand(instrumentation, new ConnectionDescription(serverId), "find", 7000000000L, true);
+    runCommand(instrumentation, connection, "update", 1500000L, false);
+    instrumentation.serverHeartbeatSucceeded(new ServerHeartbeatSucceededEvent(
+        connection.getConnectionId(), new BsonDocument(), 2000000L));
+    instrumentation.serverHeartbeatFailed(new ServerHeartbeatFailedEvent(
+        connection.getConnectionId(), 2000000L, new IOException("failed")));
+
+    InvocationMetrics metrics = new InvocationMetrics("Test", null);
+    instrumentation.report(metrics, start);
+    assertEquals(3, metrics.getCount(InvocationMetrics.Count.MONGODB_COMMANDS));
+    assertEquals(1, metrics.getCount(InvocationMetrics.Count.MONGODB_FAILED_COMMANDS));
+    assertEquals(2, metrics.getCount(InvocationMetrics.Count.MONGODB_CONNECTIONS_USED));
+
+    JsonObject emf = new JsonParser().parse(metrics.toEmf(0)).getAsJsonObject();
+    JsonObject find = emf.getAsJsonObject("MongoDbInvocation").getAsJsonObject("find");
+    assertEquals(2, find.get("count").getAsLong());
+    assertEquals(1, find.get("failed").getAsLong());
+    assertEquals(7003.0, find.get("totalMs").getAsDouble(), 0.001);
+    assertEquals(1, find.getAsJsonObject("buckets").get("<5").getAsLong());
+    assertEquals(1, find.getAsJsonObject("buckets").get(">=5000").getAsLong());
+    assertFalse(find.getAsJsonObject("buckets").has("<1"));
+    assertEquals(1, emf.getAsJsonObject("MongoDbInvocation").getAsJsonObject("update")
+        .getAsJsonObject("buckets").get("<2").getAsLong());
+    assertEquals(2, emf.getAsJsonObject("MongoDbInvocation").getAsJsonObject("heartbeat")
+        .get("count").getAsLong());
+
+    JsonObject container = emf.getAsJsonObject("MongoDbContainer");
+    assertEquals(3, container.getAsJsonObject("latency").getAsJsonObject("find")
+        .get("count").getAsLong());
+
+    // The connections are only collected between the snapshot and the report.
+    runCommand(instrumentation, connection, "find", 500000L, false);
+    MongoDbInstrumentation.Snapshot next = instrumentation.snapshot();
+    runCommand(instrumentation, connection, "find", 500000L, false);
+    InvocationMetrics nextMetrics = new InvocationMetrics("Test", null);
+    instrumentation.report(nextMetrics, next);
+    assertEquals(1, nextMetrics.getCount(InvocationMetrics.Count.MONGODB_CONNECTIONS_USED));
+  }
+
+  @Test
+  public void testDisabled() {
+    MongoDbInstrumentation instrumentation = new MongoDbInstrumentation();
+    instrumentation.report(InvocationMetrics.DISABLED, instrumentation.snapshot());
+    assertEquals(0, InvocationMetrics.DISABLED.getCount(
+        InvocationMetrics.Count.MONGODB_COMMANDS));
+  }
+
+  private void runCommand(MongoDbInstrumentation instrumentation,
+                          ConnectionDescription connection, String command, long nanos,
+                          boolean failed) {
+    instrumentation.commandStarted(new CommandStartedEvent(1, connection, "unitTest", command,
+        new BsonDocument()));
+    if (failed) {
+      instrumentation.commandFailed(new CommandFailedEvent(1, connection, command, nanos,
+          new IOException("failed")));
+    } else {
+      instrumentation.commandSucceeded(new CommandSucceededEvent(1, connection, command,
+          new BsonDocument(), nanos));
+    }
+  }
+}
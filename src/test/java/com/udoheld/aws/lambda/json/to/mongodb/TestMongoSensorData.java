@@ -24,6 +24,7 @@ import org.junit.Test;
 import java.time.LocalDate;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -118,5 +119,32 @@ public class TestMongoSensorData {
     data.setVersion(1L);
     clone = (MongoSensorData) data.clone();
     assertTrue(data.equals(clone));
+
+    data.setMask(new byte[] {1});
+    data.setValues(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    clone = (MongoSensorData) data.clone();
+    assertTrue(data.equals(clone));
+    clone.getValues()[0] = 0;
+    assertFalse(data.equals(clone));
+  }
+
+  @Test
+  public void testDerivedAverage() {
+    MongoSensorData.Summary summary = new MongoSensorData.Summary();
+    summary.setAverage(new HashMap<>());
+    summary.getAverage().put(1, 1.0);
+    summary.getAverage().put(2, 2.0);
+    assertEquals(2, summary.getAverage().size());
+
+    summary.setSum(new HashMap<>());
+    summary.setCount(new HashMap<>());
+    summary.getSum().put(2, 9.0);
+    summary.getCount().put(2, 3);
+    summary.getSum().put(3, 4.0);
+    summary.getCount().put(3, 2);
+
+    assertEquals(1.0, summary.getAverage().get(1), 0.0);
+    assertEquals(3.0, summary.getAverage().get(2), 0.0);
+    assertEquals(2.0, summary.getAverage().get(3), 0.0);
   }
 }
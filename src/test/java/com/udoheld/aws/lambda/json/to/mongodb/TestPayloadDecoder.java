@@ -0,0 +1,156 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing the PayloadDecoder.
+ * @author Udo Held
+ */
+public class TestPayloadDecoder {
+  private String json = "{\"d\":[{\"bn\":\"dev1\",\"bt\":1485869189,\"n\":\"temp\",\"v\":27.9}]}";
+
+  @Test
+  public void testDecompress() throws IOException {
+    assertEquals(json, decompress(json.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(json, decompress(gzip(json)));
+    assertEquals(json, decompress(deflate(json)));
+    assertEquals("", decompress(new byte[0]));
+  }
+
+  @Test
+  public void testDecompressLimit() throws IOException {
+    char[] zeros = new char[100000];
+    Arrays.fill(zeros, '0');
+    byte[] compressed = gzip(new String(zeros));
+    assertEquals(zeros.length, read(PayloadDecoder.decompress(new BufferedInputStream(
+        new ByteArrayInputStream(compressed)), zeros.length)));
+    try {
+      read(PayloadDecoder.decompress(new BufferedInputStream(
+          new ByteArrayInputStream(compressed)), zeros.length - 1));
+      fail("IOException was expected.");
+    } catch (IOException expected) {
+      assertEquals("The decompressed payload exceeds 99999 bytes.", expected.getMessage());
+    }
+
+    // Uncompressed input isn't limited.
+    byte[] plain = new String(zeros).getBytes(StandardCharsets.UTF_8);
+    assertEquals(zeros.length, read(PayloadDecoder.decompress(new BufferedInputStream(
+        new ByteArrayInputStream(plain)), 1000)));
+  }
+
+  @Test
+  public void testCborLookingLikeZlib() throws IOException {
+    // 0x98 0x18 passes the zlib checksum, but uses an invalid window size.
+    byte[] pack = TestCborInputParser.buildPack("dev1", 24);
+    assertEquals(0, ((pack[0] & 0xff) << 8 | pack[1] & 0xff) % 31);
+
+    BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(pack));
+    InputStream decompressed = PayloadDecoder.decompress(input, 0);
+    assertSame(input, decompressed);
+    assertTrue(PayloadDecoder.isCbor(decompressed));
+    assertEquals(24, new CborInputParser().parse(decompressed,
+        (device, type, timestamp, value) -> assertEquals("dev1", device)));
+  }
+
+  @Test
+  public void testDecodeBase64() throws IOException {
+    assertNull(PayloadDecoder.decodeBase64(json));
+    assertNull(PayloadDecoder.decodeBase64(" [" + json + "]"));
+    assertNull(PayloadDecoder.decodeBase64("not base64!"));
+    assertNull(PayloadDecoder.decodeBase64("Plain text"));
+    assertNull(PayloadDecoder.decodeBase64("null"));
+    assertNull(PayloadDecoder.decodeBase64(" true\n"));
+    assertNull(PayloadDecoder.decodeBase64("\"SGVsbG8=\""));
+    assertNull(PayloadDecoder.decodeBase64("H4sI*AAA"));
+    assertNull(PayloadDecoder.decodeBase64("\t"));
+    assertArrayEquals(gzip(json), PayloadDecoder.decodeBase64(
+        Base64.getEncoder().encodeToString(gzip(json))));
+    assertArrayEquals(deflate(json), PayloadDecoder.decodeBase64(
+        Base64.getMimeEncoder().encodeToString(deflate(json))));
+  }
+
+  @Test
+  public void testIsCbor() throws IOException {
+    assertTrue(PayloadDecoder.isCbor(new BufferedInputStream(new ByteArrayInputStream(
+        new byte[]{(byte) 0x81, (byte) 0xa0}))));
+    assertFalse(PayloadDecoder.isCbor(new BufferedInputStream(new ByteArrayInputStream(
+        json.getBytes(StandardCharsets.UTF_8)))));
+    assertFalse(PayloadDecoder.isCbor(new BufferedInputStream(new ByteArrayInputStream(
+        new byte[0]))));
+  }
+
+  static byte[] gzip(String input) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (OutputStream os = new GZIPOutputStream(bos)) {
+      os.write(input.getBytes(StandardCharsets.UTF_8));
+    }
+    return bos.toByteArray();
+  }
+
+  private byte[] deflate(String input) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (OutputStream os = new DeflaterOutputStream(bos)) {
+      os.write(input.getBytes(StandardCharsets.UTF_8));
+    }
+    return bos.toByteArray();
+  }
+
+  private int read(InputStream input) throws IOException {
+    int length = 0;
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      length += read;
+    }
+    return length;
+  }
+
+  private String decompress(byte[] input) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        PayloadDecoder.decompress(new BufferedInputStream(new ByteArrayInputStream(input)), 0),
+        StandardCharsets.UTF_8))) {
+      return reader.lines().collect(Collectors.joining("\n"));
+    }
+  }
+}
@@ -19,21 +19,32 @@
 package com.udoheld.aws.lambda.json.to.mongodb;
 
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.mongodb.Block;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.Config;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.DocumentLayout;
+import com.udoheld.aws.lambda.json.to.mongodb.cfg.WriteMode;
+import com.udoheld.aws.lambda.json.to.mongodb.model.DailySensorData;
 import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
 import com.udoheld.iot.json.InputParser;
 import com.udoheld.iot.json.api.SensorData;
+import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.junit.Test;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -41,6 +52,9 @@ import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Updates.combine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -77,7 +91,7 @@ public class TestProcessDataHandler {
     assertNotNull(sensorData);
     assertTrue(sensorData.length > 0);
 
-    Map<String, Map<String, Map<LocalDate, MongoSensorData>>> sensorHolder = new HashMap<>();
+    Map<String, Map<String, Map<LocalDate, DailySensorData>>> sensorHolder = new HashMap<>();
 
     try (ProcessDataHandler dataHandler
              = ProcessDataHandler.getProcessDataHandler (mongoDbConnectionUrl,mongoDbDatabase,
@@ -116,16 +130,377 @@ public class TestProcessDataHandler {
     }
   }
 
+  @Test
+  public void processTestDataUpsert() throws IOException {
+    Map<Object, Document> merged = processTestFile(WriteMode.MERGE);
+    Map<Object, Document> upserted = processTestFile(WriteMode.UPSERT);
+
+    assertEquals(6, upserted.size());
+    upserted.forEach((id, document) -> assertEquals(merged.get(id).get("detailed"),
+        document.get("detailed")));
+    upserted.forEach((id, document) -> assertEquals(merged.get(id).get("summary"),
+        document.get("summary")));
+  }
+
+  @Test
+  public void testIncrementalSummary() {
+    Config config = buildConfig(WriteMode.UPSERT);
+    // 2017-01-23T00:00:00Z
+    long midnight = 1485129600L;
+
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+    try (MongoClient mongoClient = new MongoClient(uri);
+         ProcessDataHandler dataHandler = ProcessDataHandler.getProcessDataHandler(
+             mongoDbConnectionUrl, config, getLogger())) {
+      MongoCollection<Document> mongoCollection = mongoClient.getDatabase(mongoDbDatabase)
+          .getCollection(mongoDbCollection);
+      mongoCollection.drop();
+
+      dataHandler.processInput("[" + buildInput(midnight + 60, 1.0) + ","
+          + buildInput(midnight + 120, 2.0) + "]");
+      Document summary = (Document) mongoCollection.find().first().get("summary");
+      assertEquals(3.0, ((Document) summary.get("sum")).getDouble("0"), 0.0);
+      assertEquals(2, ((Document) summary.get("cnt")).getInteger("0").intValue());
+      assertNull(summary.get("avg"));
+
+      dataHandler.processInput(buildInput(midnight + 180, 6.0));
+      summary = (Document) mongoCollection.find().first().get("summary");
+      assertEquals(9.0, ((Document) summary.get("sum")).getDouble("0"), 0.0);
+      assertEquals(3, ((Document) summary.get("cnt")).getInteger("0").intValue());
+
+      // Overwriting an existing minute requires merging the document.
+      dataHandler.processInput(buildInput(midnight + 180, 3.0));
+      summary = (Document) mongoCollection.find().first().get("summary");
+      assertEquals(6.0, ((Document) summary.get("sum")).getDouble("0"), 0.0);
+      assertEquals(3, ((Document) summary.get("cnt")).getInteger("0").intValue());
+      assertEquals(2.0, ((Document) summary.get("avg")).getDouble("0"), 0.0);
+      assertEquals(1L, mongoCollection.count());
+    }
+  }
+
+  private String buildInput(long timestamp, double value) {
+    return "{\"d\":[{\"bn\":\"testIncrementalSummary\",\"bt\":" + timestamp
+        + ",\"n\":\"temp\",\"u\":\"Cel\",\"v\":" + value + "}]}";
+  }
+
+  @Test
+  public void processTestDataBulk() throws IOException {
+    Map<Object, Document> merged = processTestFile(WriteMode.MERGE);
+    Map<Object, Document> bulkWritten = processTestFile(WriteMode.BULK);
+
+    assertEquals(6, bulkWritten.size());
+    bulkWritten.forEach((id, document) -> assertEquals(merged.get(id).get("detailed"),
+        document.get("detailed")));
+  }
+
+  @Test
+  public void processTestDataParallel() throws IOException {
+    Map<Object, Document> merged = processTestFile(WriteMode.MERGE);
+
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setMongoDbParallelWrites(true);
+    Map<Object, Document> parallelMerged = processTestFile(config);
+
+    config = buildConfig(WriteMode.UPSERT);
+    config.setMongoDbParallelWrites(true);
+    config.setMongoDbVirtualThreads(true);
+    Map<Object, Document> parallelUpserted = processTestFile(config);
+
+    assertEquals(6, parallelMerged.size());
+    assertEquals(6, parallelUpserted.size());
+    merged.forEach((id, document) -> {
+      assertEquals(document.get("detailed"), parallelMerged.get(id).get("detailed"));
+      assertEquals(document.get("detailed"), parallelUpserted.get(id).get("detailed"));
+    });
+  }
+
+  @Test
+  public void processTestDataPacked() throws IOException {
+    Map<Object, Document> merged = processTestFile(WriteMode.MERGE);
+
+    Config config = buildConfig(WriteMode.BULK);
+    config.setMongoDbDocumentLayout(DocumentLayout.PACKED);
+    Map<Object, Document> packed = processTestFile(config);
+
+    assertEquals(6, packed.size());
+    packed.forEach((id, document) -> {
+      assertNull(document.get("detailed"));
+      assertNotNull(document.get("mask"));
+      assertNotNull(document.get("values"));
+      assertEquals(merged.get(id).get("summary"), document.get("summary"));
+    });
+
+    // Merging the packed documents converts them to the nested layout.
+    config.setMongoDbDocumentLayout(DocumentLayout.NESTED);
+    try (ProcessDataHandler dataHandler
+             = ProcessDataHandler.getProcessDataHandler(mongoDbConnectionUrl, config,
+        getLogger())) {
+      dataHandler.processInput(readTestFile());
+    }
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      mongoClient.getDatabase(mongoDbDatabase).getCollection(mongoDbCollection).find()
+          .forEach((Block<Document>) x -> {
+            assertNull(x.get("mask"));
+            assertEquals(merged.get(x.get("_id")).get("detailed"), x.get("detailed"));
+          });
+    }
+  }
+
+  private Config buildConfig(WriteMode writeMode) {
+    Config config = new Config();
+    config.setMongoDbDatabase(mongoDbDatabase);
+    config.setMongoDbWriteMode(writeMode);
+    return config;
+  }
+
+  private Map<Object, Document> processTestFile(WriteMode writeMode) throws IOException {
+    return processTestFile(buildConfig(writeMode));
+  }
+
+  /**
+   * Processes the test file twice into an empty collection. The replay must not change the
+   * resulting documents.
+   */
+  private Map<Object, Document> processTestFile(Config config) throws IOException {
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoDatabase mongoDatabase = mongoClient.getDatabase(mongoDbDatabase);
+      MongoCollection<Document> mongoCollection = mongoDatabase.getCollection(mongoDbCollection);
+      mongoCollection.drop();
+
+      try (ProcessDataHandler dataHandler
+               = ProcessDataHandler.getProcessDataHandler(mongoDbConnectionUrl, config,
+          getLogger())) {
+        for (int i = 0; i < 2; i++) {
+          if (config.isStreamingInput()) {
+            try (InputStream input = new ByteArrayInputStream(
+                readTestFile().getBytes(StandardCharsets.UTF_8))) {
+              dataHandler.processInput(input);
+            }
+          } else {
+            dataHandler.processInput(readTestFile());
+          }
+        }
+      }
+
+      Map<Object, Document> documents = new HashMap<>();
+      mongoCollection.find().forEach((Block<Document>) x -> documents.put(x.get("_id"), x));
+      return documents;
+    }
+  }
+
+  @Test
+  public void processTestDataStreaming() throws IOException {
+    Map<Object, Document> expected = processTestFile(WriteMode.MERGE);
+
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setStreamingInput(true);
+    Map<Object, Document> documents = processTestFile(config);
+    assertEquals(expected.keySet(), documents.keySet());
+    for (Map.Entry<Object, Document> entry : expected.entrySet()) {
+      assertEquals(entry.getValue().get("detailed"), documents.get(entry.getKey()).get("detailed"));
+      assertEquals(entry.getValue().get("summary"), documents.get(entry.getKey()).get("summary"));
+    }
+  }
+
+  @Test
+  public void processTestDataParallelGrouping() throws IOException {
+    Map<Object, Document> expected = processTestFile(WriteMode.MERGE);
+
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setParallelGroupingThreshold(1);
+    Map<Object, Document> documents = processTestFile(config);
+    assertEquals(expected.keySet(), documents.keySet());
+    for (Map.Entry<Object, Document> entry : expected.entrySet()) {
+      assertEquals(entry.getValue().get("detailed"), documents.get(entry.getKey()).get("detailed"));
+      assertEquals(entry.getValue().get("summary"), documents.get(entry.getKey()).get("summary"));
+    }
+  }
+
+  @Test
+  public void processTestDataBounded() throws IOException {
+    Map<Object, Document> expected = processTestFile(WriteMode.MERGE);
+
+    Config documentBounded = buildConfig(WriteMode.UPSERT);
+    documentBounded.setMaxBufferedDocuments(1);
+    Config byteBounded = buildConfig(WriteMode.BULK);
+    byteBounded.setMaxBufferedBytes(30000);
+    byteBounded.setStreamingInput(true);
+    for (Config config : new Config[]{documentBounded, byteBounded}) {
+      Map<Object, Document> documents = processTestFile(config);
+      assertEquals(expected.keySet(), documents.keySet());
+      for (Map.Entry<Object, Document> entry : expected.entrySet()) {
+        assertEquals(entry.getValue().get("detailed"),
+            documents.get(entry.getKey()).get("detailed"));
+      }
+    }
+  }
+
+  @Test
+  public void processBoundedBatch() throws IOException {
+    String input = "{\"Records\":[" + sqsRecord("1", "dev1", 1485869189L)
+        + "," + sqsRecord("2", "dev2", 1485869189L) + ","
+        + sqsRecord("3", "dev1", 1485955589L) + ","
+        + sqsRecord("4", "dev1", 1485869249L) + "]}";
+
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setMaxBufferedDocuments(1);
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      MongoCollection<Document> mongoCollection = mongoClient.getDatabase(mongoDbDatabase)
+          .getCollection(mongoDbCollection);
+      mongoCollection.drop();
+
+      InvocationMetrics metrics = new InvocationMetrics("Test", null);
+      List<String> failures = ProcessDataHandler.process(mongoDbConnectionUrl, config,
+          getLogger(), metrics, pdh -> pdh.processSqsBatch(new StringReader(input)));
+      assertTrue(failures.isEmpty());
+      assertEquals(3, mongoCollection.count());
+      // dev1 2017-01-31 gets evicted and written twice, but is only counted once.
+      assertEquals(3, metrics.getCount(InvocationMetrics.Count.DOCUMENTS));
+      assertEquals(3, metrics.getCount(InvocationMetrics.Count.BACKFILL_DOCUMENTS));
+      Document detailed = (Document) mongoCollection.find(combine(eq("_id.device", "dev1"),
+          eq("_id.date", Date.from(Instant.parse("2017-01-31T00:00:00Z"))))).first()
+          .get("detailed");
+      assertEquals(2, ((Document) detailed.get("13")).size());
+    }
+  }
+
+  private String sqsRecord(String messageId, String device, long timestamp) {
+    return "{\"messageId\":\"" + messageId + "\",\"body\":\"{\\\"d\\\":[{\\\"bn\\\":\\\""
+        + device + "\\\",\\\"bt\\\":" + timestamp
+        + ",\\\"n\\\":\\\"temp\\\",\\\"v\\\":20.5}]}\"}";
+  }
+
+  @Test
+  public void processTestDataMetrics() throws IOException {
+    MongoClientURI uri = new MongoClientURI(mongoDbConnectionUrl);
+    try (MongoClient mongoClient = new MongoClient(uri)) {
+      mongoClient.getDatabase(mongoDbDatabase).getCollection(mongoDbCollection).drop();
+
+      InvocationMetrics metrics = new InvocationMetrics("Test", null);
+      ProcessDataHandler.process(mongoDbConnectionUrl, buildConfig(WriteMode.MERGE), getLogger(),
+          metrics, pdh -> {
+            pdh.processInput(readTestFile());
+            return null;
+          });
+      assertEquals(6, metrics.getCount(InvocationMetrics.Count.DOCUMENTS));
+      assertTrue(metrics.getCount(InvocationMetrics.Count.MEASUREMENTS) > 0);
+      assertTrue(metrics.getTime(InvocationMetrics.Phase.MONGODB_READ) > 0);
+      assertTrue(metrics.getTime(InvocationMetrics.Phase.MONGODB_WRITE) > 0);
+      assertTrue(metrics.getCount(InvocationMetrics.Count.MONGODB_COMMANDS) >= 12);
+      assertTrue(metrics.getCount(InvocationMetrics.Count.MONGODB_CONNECTIONS_USED) > 0);
+      assertEquals(6, metrics.getCount(InvocationMetrics.Count.BACKFILL_DOCUMENTS));
+      assertEquals(6, metrics.getCount(InvocationMetrics.Count.INSERTED_DOCUMENTS));
+
+      InvocationMetrics replayMetrics = new InvocationMetrics("Test", null);
+      ProcessDataHandler.process(mongoDbConnectionUrl, buildConfig(WriteMode.MERGE), getLogger(),
+          replayMetrics, pdh -> {
+            pdh.processInput(readTestFile());
+            return null;
+          });
+      assertEquals(6, replayMetrics.getCount(InvocationMetrics.Count.UNCHANGED_DOCUMENTS));
+      assertEquals(0, replayMetrics.getCount(InvocationMetrics.Count.UPDATED_DOCUMENTS));
+      assertTrue(replayMetrics.getFailedDocuments().isEmpty());
+      assertTrue(metrics.getValue(InvocationMetrics.Value.INGEST_LAG_MAX) > 86400L * 365);
+
+      InvocationMetrics streamingMetrics = new InvocationMetrics("Test", null);
+      ProcessDataHandler.process(mongoDbConnectionUrl, buildConfig(WriteMode.UPSERT), getLogger(),
+          streamingMetrics, pdh -> {
+            pdh.processInput(new StringReader("{\"d\":[{\"bn\":\"dev1\",\"bt\":1485869189,"
+                + "\"n\":\"temp\",\"v\":27.9},{\"bn\":\"dev1\",\"n\":\"temp\"}]}"));
+            return null;
+          });
+      assertEquals(1, streamingMetrics.getCount(InvocationMetrics.Count.MEASUREMENTS));
+      assertEquals(1, streamingMetrics.getCount(InvocationMetrics.Count.REJECTED_MEASUREMENTS));
+      assertTrue(streamingMetrics.getTime(InvocationMetrics.Phase.GROUPING) > 0);
+
+      // Metrics only required for the invocation result don't time every measurement.
+      Config resultConfig = buildConfig(WriteMode.UPSERT);
+      InvocationMetrics resultMetrics = InvocationMetrics.forInvocation(resultConfig,
+          TestConfigurationTest.getContext(Logger.getLogger(getClass().getName())), true);
+      ProcessDataHandler.process(mongoDbConnectionUrl, resultConfig, getLogger(),
+          resultMetrics, pdh -> {
+            pdh.processInput(new StringReader("{\"d\":[{\"bn\":\"dev1\",\"bt\":1485869189,"
+                + "\"n\":\"temp\",\"v\":27.9}]}"));
+            return null;
+          });
+      assertEquals(1, resultMetrics.getCount(InvocationMetrics.Count.MEASUREMENTS));
+      assertEquals(0, resultMetrics.getTime(InvocationMetrics.Phase.GROUPING));
+      assertTrue(resultMetrics.getTime(InvocationMetrics.Phase.PARSE) > 0);
+
+      InvocationMetrics parsedMetrics = new InvocationMetrics("Test", null);
+      ProcessDataHandler.process(mongoDbConnectionUrl, buildConfig(WriteMode.UPSERT), getLogger(),
+          parsedMetrics, pdh -> {
+            pdh.processInput("{\"d\":[{\"bn\":\"dev1\",\"bt\":1485869189,\"n\":\"temp\","
+                + "\"v\":27.9},{\"bn\":\"dev1\",\"n\":\"temp\"},{\"bn\":\"dev1\","
+                + "\"bt\":1485869249,\"n\":\"temp\"}]}");
+            return null;
+          });
+      assertEquals(1, parsedMetrics.getCount(InvocationMetrics.Count.MEASUREMENTS));
+      assertEquals(2, parsedMetrics.getCount(InvocationMetrics.Count.REJECTED_MEASUREMENTS));
+    }
+  }
+
+  @Test
+  public void testSharedProcessDataHandler() throws IOException {
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setMongoDbKeepConnection(true);
+    try {
+      ProcessDataHandler dataHandler = ProcessDataHandler.getSharedProcessDataHandler(
+          mongoDbConnectionUrl, config, getLogger());
+      dataHandler.processInput(readTestFile());
+
+      Config sameConfig = buildConfig(WriteMode.MERGE);
+      sameConfig.setMongoDbKeepConnection(true);
+      assertSame(dataHandler, ProcessDataHandler.getSharedProcessDataHandler(
+          mongoDbConnectionUrl, sameConfig, getLogger()));
+
+      Config changedConfig = buildConfig(WriteMode.UPSERT);
+      changedConfig.setMongoDbKeepConnection(true);
+      ProcessDataHandler changedHandler = ProcessDataHandler.getSharedProcessDataHandler(
+          mongoDbConnectionUrl, changedConfig, getLogger());
+      assertNotSame(dataHandler, changedHandler);
+
+      ProcessDataHandler.discardSharedProcessDataHandler();
+      ProcessDataHandler rebuiltHandler = ProcessDataHandler.getSharedProcessDataHandler(
+          mongoDbConnectionUrl, changedConfig, getLogger());
+      assertNotSame(changedHandler, rebuiltHandler);
+      rebuiltHandler.processInput(readTestFile());
+    } finally {
+      ProcessDataHandler.discardSharedProcessDataHandler();
+    }
+  }
+
+  @Test
+  public void testSharedProcessDataHandlerBatchFailure() throws IOException {
+    String unreachable = "mongodb://localhost:1/?serverSelectionTimeoutMS=200";
+    Config config = buildConfig(WriteMode.MERGE);
+    config.setMongoDbKeepConnection(true);
+    try {
+      ProcessDataHandler[] handler = new ProcessDataHandler[1];
+      List<String> failedIds = ProcessDataHandler.process(unreachable, config, getLogger(),
+          pdh -> {
+            handler[0] = pdh;
+            return pdh.processSqsBatch(new StringReader("{\"Records\":["
+                + sqsRecord("1", "dev1", 1485869189L) + "]}"));
+          });
+      assertEquals(Collections.singletonList("1"), failedIds);
+      assertNotSame(handler[0], ProcessDataHandler.getSharedProcessDataHandler(unreachable,
+          config, getLogger()));
+    } finally {
+      ProcessDataHandler.discardSharedProcessDataHandler();
+    }
+  }
+
   @Test
   public void testMergeRecords() throws NoSuchMethodException, InvocationTargetException,
       IllegalAccessException {
-    MongoSensorData srcData = new MongoSensorData();
-    srcData.setDetailed(new HashMap<>());
-    srcData.getDetailed().put(1,new HashMap<>());
-    srcData.getDetailed().get(1).put(1,1.0);
-    srcData.getDetailed().get(1).put(2,2.0);
-    srcData.getDetailed().put(2,new HashMap<>());
-    srcData.getDetailed().get(2).put(3,3.0);
+    DailySensorData srcData = new DailySensorData(null);
+    srcData.set(1, 1, 1.0);
+    srcData.set(1, 2, 2.0);
+    srcData.set(2, 3, 3.0);
 
     MongoSensorData existingData = new MongoSensorData();
     existingData.setDetailed(new HashMap<>());
@@ -134,9 +509,9 @@ public class TestProcessDataHandler {
     existingData.getDetailed().get(1).put(6,6.0);
     existingData.getDetailed().put(5, new HashMap<>());
     existingData.getDetailed().get(5).put(5,5.0);
-    srcData.setSummary(new MongoSensorData.Summary());
-    srcData.getSummary().setAverage(new HashMap<>());
-    srcData.getSummary().getAverage().put(1,2.25);
+    existingData.setSummary(new MongoSensorData.Summary());
+    existingData.getSummary().setAverage(new HashMap<>());
+    existingData.getSummary().getAverage().put(1,2.25);
 
     try (ProcessDataHandler dataHandler
              = ProcessDataHandler.getProcessDataHandler(mongoDbConnectionUrl, mongoDbDatabase,
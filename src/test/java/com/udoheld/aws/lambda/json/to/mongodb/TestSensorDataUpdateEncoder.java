@@ -0,0 +1,82 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import com.udoheld.aws.lambda.json.to.mongodb.model.DailySensorData;
+import com.udoheld.aws.lambda.json.to.mongodb.model.MongoSensorData;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testing the update documents created by the SensorDataUpdateEncoder.
+ * @author Udo Held
+ */
+public class TestSensorDataUpdateEncoder {
+
+  @Test
+  public void testIdRoundTrip() {
+    MongoSensorData.Id id = buildId();
+    SensorDataIdCodec codec = new SensorDataIdCodec();
+    BsonDocument document = new BsonDocument();
+    codec.encode(new BsonDocumentWriter(document), id, EncoderContext.builder().build());
+    assertEquals(1485907200000L, document.getDateTime("date").getValue());
+
+    MongoSensorData.Id decoded = codec.decode(new BsonDocumentReader(document),
+        DecoderContext.builder().build());
+    assertEquals(id, decoded);
+  }
+
+  @Test
+  public void testEncodeUpdate() {
+    DailySensorData data = new DailySensorData(buildId());
+    data.set(1, 30, 3.0);
+    data.set(1, 31, 4.0);
+    data.set(5, 0, 1.5);
+
+    SensorDataUpdateEncoder encoder = new SensorDataUpdateEncoder();
+    BsonDocument update = encoder.encodeUpdate(data);
+    assertEquals(BsonDocument.parse("{$set: {'detailed.1.30': 3.0, 'detailed.1.31': 4.0, "
+        + "'detailed.5.0': 1.5}, $inc: {'summary.sum.1': 7.0, 'summary.cnt.1': 2, "
+        + "'summary.sum.5': 1.5, 'summary.cnt.5': 1, version: {$numberLong: '1'}}, "
+        + "$unset: {'summary.avg.1': '', 'summary.avg.5': ''}}"), update);
+
+    BsonDocument filter = encoder.encodeFilter(data);
+    assertEquals(BsonDocument.parse("{_id: {device: 'dev', date: {$date: 1485907200000}, "
+        + "type: 'temp'}, 'detailed.1.30': {$exists: false}, "
+        + "'detailed.1.31': {$exists: false}, 'detailed.5.0': {$exists: false}, "
+        + "$or: [{detailed: {$exists: false}}, {'summary.cnt': {$exists: true}}], "
+        + "mask: {$exists: false}}"), filter);
+  }
+
+  private MongoSensorData.Id buildId() {
+    MongoSensorData.Id id = new MongoSensorData.Id();
+    id.setDevice("dev");
+    id.setDate(LocalDate.of(2017, 2, 1));
+    id.setType("temp");
+    return id;
+  }
+}
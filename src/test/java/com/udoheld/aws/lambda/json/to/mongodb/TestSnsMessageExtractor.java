@@ -20,8 +20,15 @@ package com.udoheld.aws.lambda.json.to.mongodb;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 /**
  * @author Udo Held
@@ -37,4 +44,19 @@ public class TestSnsMessageExtractor {
     assertNotNull(expectedOutput);
     assertEquals(expectedOutput, output);
   }
+
+  @Test
+  public void testSnsMessagesExtraction() throws IOException {
+    String input = "{\"Type\":\"ignored\",\"Records\":[{\"EventSource\":\"aws:sns\",\"Sns\":"
+        + "{\"Subject\":null,\"Message\":\"first\",\"MessageAttributes\":{}}},"
+        + "{\"EventSource\":\"aws:sns\",\"Sns\":{\"Message\":\"second\"}},"
+        + "{\"EventSource\":\"aws:sns\",\"Sns\":{\"Message\":null}},\"invalid\"]}";
+
+    List<String> messages = new ArrayList<>();
+    assertEquals(2, SnsMessageExtractor.extractSnsMessages(new StringReader(input),
+        messages::add));
+    assertEquals(Arrays.asList("first", "second"), messages);
+    assertEquals("first", SnsMessageExtractor.extractSnsMessage(input));
+    assertNull(SnsMessageExtractor.extractSnsMessage("[]"));
+  }
 }
@@ -0,0 +1,78 @@
+/*
+    Copyright 2017 the original author or authors.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this program. If not, see
+    <http://www.gnu.org/licenses/>.
+ */
+
+package com.udoheld.aws.lambda.json.to.mongodb;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the StreamingInputParser.
+ * @author Udo Held
+ */
+public class TestStreamingInputParser {
+
+  @Test
+  public void testParseArray() throws IOException {
+    String input = "[{\"d\":[{\"bn\":\"dev1\",\"bt\":1485869189.215,\"n\":\"temp\",\"u\":\"Cel\","
+        + "\"v\":27.9},{\"bn\":\"dev1\",\"bt\":1485869249,\"n\":\"hum\",\"v\":50}],"
+        + "\"clientid\":\"edison-1\",\"nested\":{\"d\":[1,2]}},"
+        + "{\"timestamp\":1485869189339,\"d\":[{\"bn\":\"dev2\",\"bt\":1485869189,\"n\":null,"
+        + "\"v\":1.5},\"invalid\"]},null]";
+
+    List<Object[]> measurements = new ArrayList<>();
+    int records = new StreamingInputParser().parse(new StringReader(input),
+        (device, type, timestamp, value) -> measurements.add(
+            new Object[]{device, type, timestamp, value}));
+
+    assertEquals(2, records);
+    assertEquals(3, measurements.size());
+    assertEquals("dev1", measurements.get(0)[0]);
+    assertEquals("temp", measurements.get(0)[1]);
+    assertEquals(1485869189.215, (double) measurements.get(0)[2], 0.0);
+    assertEquals(27.9, (double) measurements.get(0)[3], 0.0);
+    assertEquals("hum", measurements.get(1)[1]);
+    assertEquals(50.0, (double) measurements.get(1)[3], 0.0);
+    assertEquals("dev2", measurements.get(2)[0]);
+    assertNull(measurements.get(2)[1]);
+  }
+
+  @Test
+  public void testParseSingleRecord() throws IOException {
+    String input = "{\"d\":[{\"bn\":\"dev1\",\"n\":\"temp\",\"v\":27.9}]}";
+
+    List<Object[]> measurements = new ArrayList<>();
+    int records = new StreamingInputParser().parse(new StringReader(input),
+        (device, type, timestamp, value) -> measurements.add(
+            new Object[]{device, type, timestamp, value}));
+
+    assertEquals(1, records);
+    assertEquals(1, measurements.size());
+    assertTrue(Double.isNaN((double) measurements.get(0)[2]));
+    assertEquals(0, new StreamingInputParser().parse(new StringReader(""),
+        (device, type, timestamp, value) -> measurements.add(null)));
+  }
+}